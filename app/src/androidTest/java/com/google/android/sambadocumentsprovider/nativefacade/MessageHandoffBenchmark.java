@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.nativefacade;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the old monitor based handoff between the caller and the looper thread with the
+ * park/unpark handoff in {@link BaseClient}. The handler does no work so only the handoff cost is
+ * measured. Each is timed a few times and the best run is compared, so that a single hiccup of the
+ * device doesn't decide the outcome.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageHandoffBenchmark {
+  private static final String TAG = "MessageHandoffBenchmark";
+
+  private static final int WARM_UP_ITERATIONS = 2000;
+  private static final int ITERATIONS = 20000;
+  private static final int ROUNDS = 3;
+
+  private HandlerThread mThread;
+  private MonitorClient mMonitorClient;
+  private ParkingClient mParkingClient;
+
+  @Before
+  public void setUp() {
+    mThread = new HandlerThread(TAG);
+    mThread.start();
+    mMonitorClient = new MonitorClient(mThread.getLooper());
+    mParkingClient = new ParkingClient(mThread.getLooper());
+  }
+
+  @After
+  public void tearDown() {
+    mThread.quitSafely();
+  }
+
+  @Test
+  public void handoff_parkingIsFasterThanMonitor() {
+    runMonitor(WARM_UP_ITERATIONS);
+    runParking(WARM_UP_ITERATIONS);
+
+    long monitorNanos = Long.MAX_VALUE;
+    long parkingNanos = Long.MAX_VALUE;
+    for (int i = 0; i < ROUNDS; ++i) {
+      monitorNanos = Math.min(monitorNanos, runMonitor(ITERATIONS));
+      parkingNanos = Math.min(parkingNanos, runParking(ITERATIONS));
+    }
+
+    Log.i(TAG, "ns per call: monitor=" + monitorNanos / ITERATIONS
+        + " park=" + parkingNanos / ITERATIONS);
+    assertTrue("park=" + parkingNanos + "ns monitor=" + monitorNanos + "ns",
+        parkingNanos < monitorNanos);
+  }
+
+  private long runMonitor(int iterations) {
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      try (MessageValues<?> messageValues = MessageValues.obtain()) {
+        mMonitorClient.call(messageValues);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private long runParking(int iterations) {
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      try (MessageValues<?> messageValues = MessageValues.obtain()) {
+        mParkingClient.enqueue(mParkingClient.mHandler.obtainMessage(0, messageValues));
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static class ParkingClient extends BaseClient {
+    private ParkingClient(Looper looper) {
+      mHandler = new BaseHandler(looper) {
+        @Override
+        void processMessage(Message msg) {}
+      };
+    }
+  }
+
+  /**
+   * The handoff {@link BaseClient} used before: wait() on the caller side, notify() on the looper
+   * side, both under the monitor of the message payload.
+   */
+  private static class MonitorClient {
+    private final Handler mHandler;
+
+    private MonitorClient(Looper looper) {
+      mHandler = new Handler(looper) {
+        @Override
+        public void handleMessage(Message msg) {
+          synchronized (msg.obj) {
+            msg.obj.notify();
+          }
+        }
+      };
+    }
+
+    private void call(Object payload) {
+      final Message msg = mHandler.obtainMessage(0, payload);
+      try {
+        synchronized (payload) {
+          mHandler.sendMessage(msg);
+          payload.wait();
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -22,6 +22,7 @@ namespace SambaClient {
 struct CredentialTuple emptyTuple_;
 
 struct CredentialTuple CredentialCache::get(const std::string &key) const {
+  std::lock_guard<std::mutex> lock(mutex_);
   if (credentialMap_.find(key) != credentialMap_.end()) {
     return credentialMap_.at(key);
   } else {
@@ -30,11 +31,13 @@ struct CredentialTuple CredentialCache::get(const std::string &key) const {
 }
 
 void CredentialCache::put(const char *key, const struct CredentialTuple &tuple) {
+  std::lock_guard<std::mutex> lock(mutex_);
   credentialMap_[key] = tuple;
 }
 
 void CredentialCache::remove(const char *key_) {
   std::string key(key_);
+  std::lock_guard<std::mutex> lock(mutex_);
   credentialMap_.erase(key);
 }
 }
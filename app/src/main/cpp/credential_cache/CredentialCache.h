@@ -18,6 +18,7 @@
 #ifndef SAMBADOCUMENTSPROVIDER_SERVERCACHE_H
 #define SAMBADOCUMENTSPROVIDER_SERVERCACHE_H
 
+#include <mutex>
 #include <unordered_map>
 
 namespace SambaClient {
@@ -33,6 +34,8 @@ class CredentialCache {
   void put(const char *key, const struct CredentialTuple &tuple);
   void remove(const char *key);
  private:
+  // Credentials are read by every Samba context in the pool from its own thread.
+  mutable std::mutex mutex_;
   std::unordered_map<std::string, CredentialTuple> credentialMap_;
 };
 }
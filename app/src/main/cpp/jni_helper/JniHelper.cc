@@ -25,7 +25,10 @@
 #include "samba_client/SambaClient.h"
 #include "credential_cache/CredentialCache.h"
 
+#include <algorithm>
+#include <stdint.h>
 #include <stdlib.h>
+#include <string.h>
 
 #define CLASS_PREFIX "com/google/android/sambadocumentsprovider"
 
@@ -63,6 +66,12 @@ Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_na
   delete client;
 }
 
+jboolean
+Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_isNotifySupported(
+    JNIEnv *env, jclass clazz) {
+  return SambaClient::SambaClient::IsNotifySupported() ? JNI_TRUE : JNI_FALSE;
+}
+
 static jobject
 create_directory_entry(JNIEnv* env, const struct smbc_dirent &ent) {
   // Only initialize these variables once to avoid costly calls into JNIEnv.
@@ -209,6 +218,53 @@ static jobject create_structstat(JNIEnv *env, const struct stat &st) {
       static_cast<jlong>(st.st_blocks));
 }
 
+#ifdef SAMBA_HAS_READDIRPLUS2
+static jobject
+create_directory_entry_with_stat(
+    JNIEnv* env, const struct libsmb_file_info &info, const struct stat &st) {
+  static const jclass dirEntryClass =
+      classCache_.get(env, CLASS_PREFIX "/base/DirectoryEntry");
+  static const jmethodID dirEntryConstructor =
+      env->GetMethodID(dirEntryClass,
+                       "<init>",
+                       "(ILjava/lang/String;Ljava/lang/String;Landroid/system/StructStat;)V");
+
+  jobject entry = NULL;
+
+  const jstring comment = env->NewStringUTF("");
+  if (comment == NULL) {
+    return NULL;
+  }
+  const jstring name = env->NewStringUTF(info.name);
+  if (name == NULL) {
+    goto bail;
+  }
+
+  {
+    const jobject stat = create_structstat(env, st);
+    if (stat == NULL) {
+      env->DeleteLocalRef(name);
+      goto bail;
+    }
+
+    entry = env->NewObject(dirEntryClass,
+                           dirEntryConstructor,
+                           S_ISDIR(st.st_mode) ? SMBC_DIR : SMBC_FILE,
+                           comment,
+                           name,
+                           stat);
+
+    env->DeleteLocalRef(stat);
+  }
+
+  env->DeleteLocalRef(name);
+  bail:
+  env->DeleteLocalRef(comment);
+
+  return entry;
+}
+#endif
+
 jobject
 Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_stat(
     JNIEnv *env, jobject instance, jlong pointer, jstring uri_) {
@@ -442,15 +498,19 @@ Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_op
     flag = O_WRONLY;
     if (mode[1] == 'a') {
       flag |= O_APPEND;
+    } else if (mode[1] == 'x' && mode[2] == '\0') {
+      // Creates a new file, failing with EEXIST rather than overwriting an existing one.
+      flag |= O_CREAT | O_EXCL;
     } else if (mode[1] =='\0') {
       flag |= O_TRUNC;
     }
+    // "wn" opens for writing without truncating. It's used to reopen files after a reconnect.
   }
 
   if (flag >= 0) {
     SambaClient::SambaClient *client =
         reinterpret_cast<SambaClient::SambaClient*>(pointer);
-    fd = client->OpenFile(uri, flag, 0);
+    fd = client->OpenFile(uri, flag, 0644);
   }
 
   if (fd < 0) {
@@ -476,6 +536,102 @@ Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_op
   return fd;
 }
 
+static void
+throw_copy_exception(JNIEnv *env, const char *uri, int err) {
+  switch (err) {
+    case ENODEV:
+    case ENOENT:
+      throw_new_file_not_found_exception(env, "File at %s can't be found.", uri);
+      break;
+    case EACCES:
+      LOGW(TAG, "No access to file at %s.", uri);
+      throw_new_auth_failed_exception(env);
+      break;
+    default:
+      throw_new_errno_exception(env, "copy", err);
+  }
+}
+
+jlong
+Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_copy(
+    JNIEnv *env,
+    jobject instance,
+    jlong pointer,
+    jstring uri_,
+    jstring newUri_,
+    jlong offset,
+    jlong count) {
+  jlong copied = -1;
+
+  const char *uri = env->GetStringUTFChars(uri_, 0);
+  if (uri == NULL) {
+    return copied;
+  }
+  const char *newUri = env->GetStringUTFChars(newUri_, 0);
+  if (newUri == NULL) {
+    env->ReleaseStringUTFChars(uri_, uri);
+    return copied;
+  }
+
+  SambaClient::SambaClient *client =
+      reinterpret_cast<SambaClient::SambaClient*>(pointer);
+
+  struct stat st;
+  off_t remaining;
+  int dstFd = -1;
+  const int srcFd = client->OpenFile(uri, O_RDONLY, 0);
+  if (srcFd < 0) {
+    throw_copy_exception(env, uri, -srcFd);
+    goto bail;
+  }
+
+  {
+    const int result = client->Fstat(srcFd, &st);
+    if (result < 0) {
+      throw_copy_exception(env, uri, -result);
+      goto close_src;
+    }
+  }
+
+  // Don't ask the server to copy past the end of the source.
+  remaining = std::min(static_cast<off_t>(count), st.st_size - static_cast<off_t>(offset));
+  if (remaining <= 0) {
+    copied = 0;
+    goto close_src;
+  }
+
+  // The target is created by the caller, so that an existing file is never overwritten.
+  dstFd = client->OpenFile(newUri, O_WRONLY, 0);
+  if (dstFd < 0) {
+    throw_copy_exception(env, newUri, -dstFd);
+    goto close_src;
+  }
+
+  {
+    off_t result = client->SeekFile(srcFd, static_cast<off_t>(offset), SEEK_SET);
+    if (result >= 0) {
+      result = client->SeekFile(dstFd, static_cast<off_t>(offset), SEEK_SET);
+    }
+    if (result >= 0) {
+      result = client->Splice(srcFd, dstFd, remaining);
+    }
+    if (result < 0) {
+      throw_new_errno_exception(env, "copy", static_cast<int>(-result));
+    } else {
+      copied = static_cast<jlong>(result);
+    }
+  }
+
+  client->CloseFile(dstFd);
+  close_src:
+  client->CloseFile(srcFd);
+  bail:
+  env->ReleaseStringUTFChars(uri_, uri);
+  env->ReleaseStringUTFChars(newUri_, newUri);
+
+  return copied;
+}
+
 jobject Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_readDir(
     JNIEnv *env, jobject instance, jlong pointer, jint dh) {
   SambaClient::SambaClient *client =
@@ -497,6 +653,173 @@ jobject Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_rea
   return create_directory_entry(env, *dirent);
 }
 
+jobject Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_readDirPlus(
+    JNIEnv *env, jobject instance, jlong pointer, jint dh) {
+#ifdef SAMBA_HAS_READDIRPLUS2
+  SambaClient::SambaClient *client =
+      reinterpret_cast<SambaClient::SambaClient*>(pointer);
+
+  const struct libsmb_file_info* info;
+  struct stat st;
+
+  int result = client->ReadDirPlus(dh, &info, &st);
+  if (result < 0) {
+    throw_new_errno_exception(env, "readDirPlus", -result);
+    return NULL;
+  }
+
+  if (info == NULL) {
+    // This is a normal case, indicating that we finished reading this directory.
+    return NULL;
+  }
+
+  return create_directory_entry_with_stat(env, *info, st);
+#else
+  // libsmbclient before Samba 4.12 can't return stats with the listing.
+  return Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_readDir(
+      env, instance, pointer, dh);
+#endif
+}
+
+namespace {
+// Keep in sync with DirectoryEntryBatch.java.
+const int32_t BATCH_ENTRY_HAS_STAT = 1;
+// Stop filling a batch when less than this is left. It fits the longest possible entry name.
+const size_t BATCH_MIN_FREE_SPACE = 4096;
+
+class BatchWriter {
+ public:
+  BatchWriter(char *buffer, size_t capacity) : buffer_(buffer), capacity_(capacity) {}
+
+  size_t Remaining() const { return capacity_ - position_; }
+  size_t Position() const { return position_; }
+
+  template <typename T>
+  void Put(const T value) {
+    memcpy(buffer_ + position_, &value, sizeof(T));
+    position_ += sizeof(T);
+  }
+
+  // Writes a length prefixed string, truncated to what is left in the buffer.
+  void PutString(const char *str) {
+    const size_t available = Remaining() > sizeof(uint16_t) ? Remaining() - sizeof(uint16_t) : 0;
+    size_t length = strnlen(str, std::min<size_t>(available, UINT16_MAX));
+    Put(static_cast<uint16_t>(length));
+    memcpy(buffer_ + position_, str, length);
+    position_ += length;
+  }
+
+  void PutStat(const struct stat &st) {
+    Put(static_cast<int32_t>(st.st_mode));
+    Put(static_cast<int64_t>(st.st_size));
+    Put(static_cast<int64_t>(st.st_atime));
+    Put(static_cast<int64_t>(st.st_mtime));
+    Put(static_cast<int64_t>(st.st_ctime));
+  }
+
+ private:
+  char *buffer_;
+  size_t capacity_;
+  size_t position_ = 0;
+};
+}
+
+jint Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_readDirBatch(
+    JNIEnv *env, jobject instance, jlong pointer, jint dh, jobject buffer_, jboolean withStats) {
+  char *buffer = static_cast<char *>(env->GetDirectBufferAddress(buffer_));
+  const jlong capacity = env->GetDirectBufferCapacity(buffer_);
+  if (buffer == NULL || capacity < static_cast<jlong>(BATCH_MIN_FREE_SPACE)) {
+    throw_new_errno_exception(env, "readDirBatch", EINVAL);
+    return 0;
+  }
+
+  SambaClient::SambaClient *client =
+      reinterpret_cast<SambaClient::SambaClient*>(pointer);
+
+  BatchWriter writer(buffer, static_cast<size_t>(capacity));
+  while (writer.Remaining() >= BATCH_MIN_FREE_SPACE) {
+#ifdef SAMBA_HAS_READDIRPLUS2
+    if (withStats) {
+      const struct libsmb_file_info* info;
+      struct stat st;
+      int result = client->ReadDirPlus(dh, &info, &st);
+      if (result < 0) {
+        throw_new_errno_exception(env, "readDirBatch", -result);
+        return 0;
+      }
+      if (info == NULL) {
+        break;
+      }
+
+      writer.Put(static_cast<int32_t>(S_ISDIR(st.st_mode) ? SMBC_DIR : SMBC_FILE));
+      writer.Put(BATCH_ENTRY_HAS_STAT);
+      writer.PutStat(st);
+      writer.PutString(info->name);
+      writer.PutString("");
+      continue;
+    }
+#endif
+
+    const struct smbc_dirent* dirent;
+    int result = client->ReadDir(dh, &dirent);
+    if (result < 0) {
+      throw_new_errno_exception(env, "readDirBatch", -result);
+      return 0;
+    }
+    if (dirent == NULL) {
+      break;
+    }
+
+    writer.Put(static_cast<int32_t>(dirent->smbc_type));
+    writer.Put(static_cast<int32_t>(0));
+    writer.PutString(dirent->name);
+    writer.PutString(dirent->comment);
+  }
+
+  return static_cast<jint>(writer.Position());
+}
+
+void Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_watch(
+    JNIEnv *env, jobject instance, jlong pointer, jint dh, jint filter, jint timeoutMs,
+    jobject listener) {
+  static const jclass listenerClass =
+      classCache_.get(env, CLASS_PREFIX "/nativefacade/SambaDir$NotifyListener");
+  static const jmethodID onNotify =
+      env->GetMethodID(listenerClass, "onNotify", "(ILjava/lang/String;)Z");
+
+  SambaClient::SambaClient *client =
+      reinterpret_cast<SambaClient::SambaClient*>(pointer);
+
+  const JniContext<jobject> context(env, listener);
+  const JniCallback<jobject, uint32_t, const char *> callback(
+      context,
+      [](JniContext<jobject> context, uint32_t action, const char *name) -> int {
+        JNIEnv * const env = context.env;
+        jstring jname = NULL;
+        if (name != NULL) {
+          jname = env->NewStringUTF(name);
+          if (jname == NULL) {
+            return 1;
+          }
+        }
+
+        const jboolean keepWatching =
+            env->CallBooleanMethod(context.instance, onNotify, static_cast<jint>(action), jname);
+        if (jname != NULL) {
+          env->DeleteLocalRef(jname);
+        }
+
+        // Stop on exceptions so that they're thrown to the caller.
+        return (env->ExceptionCheck() || !keepWatching) ? 1 : 0;
+      });
+
+  int result = client->Notify(dh, static_cast<uint32_t>(filter),
+                              static_cast<unsigned>(timeoutMs), callback);
+  if (result < 0 && !env->ExceptionCheck()) {
+    throw_new_errno_exception(env, "watch", -result);
+  }
+}
+
 void Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_close(
     JNIEnv *env, jobject instance, jlong pointer, jint dh) {
   SambaClient::SambaClient *client =
@@ -566,6 +889,50 @@ jlong Java_com_google_android_sambadocumentsprovider_nativefacade_SambaFile_read
   return size;
 }
 
+jint Java_com_google_android_sambadocumentsprovider_nativefacade_SambaFile_readArray(
+    JNIEnv *env,
+    jobject instance,
+    jlong pointer,
+    jint fd,
+    jobject chunk_,
+    jint chunkSize,
+    jbyteArray array_,
+    jint offset,
+    jint maxlen) {
+  // Reading may block on the network for a long time, which must not happen inside a critical
+  // region. Read through the file's native buffer and copy each chunk into the Java array instead.
+  jbyte *chunk = static_cast<jbyte *>(env->GetDirectBufferAddress(chunk_));
+  const size_t chunk_size = static_cast<size_t>(chunkSize);
+  const size_t length = static_cast<size_t>(maxlen);
+
+  SambaClient::SambaClient *client =
+      reinterpret_cast<SambaClient::SambaClient*>(pointer);
+
+  size_t total = 0;
+  while (total < length) {
+    const size_t request = std::min(length - total, chunk_size);
+    ssize_t size = client->ReadFile(fd, chunk, request);
+    if (size < 0) {
+      if (total > 0) {
+        // Report what was read so far. The error comes up again on the next read.
+        break;
+      }
+      throw_new_errno_exception(env, "read", static_cast<int>(-size));
+      return -1;
+    }
+
+    env->SetByteArrayRegion(
+        array_, offset + static_cast<jint>(total), static_cast<jsize>(size), chunk);
+    total += static_cast<size_t>(size);
+    if (static_cast<size_t>(size) < request) {
+      // End of file, or the server returned what it had.
+      break;
+    }
+  }
+
+  return static_cast<jint>(total);
+}
+
 jlong Java_com_google_android_sambadocumentsprovider_nativefacade_SambaFile_write(
     JNIEnv *env,
     jobject instance,
@@ -32,6 +32,10 @@ JNIEXPORT void JNICALL
     Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_nativeDestroy(
     JNIEnv *env, jobject instance, jlong pointer);
 
+JNIEXPORT jboolean JNICALL
+    Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_isNotifySupported(
+    JNIEnv *env, jclass clazz);
+
 JNIEXPORT jint JNICALL
     Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_openDir(
     JNIEnv *env, jobject instance, jlong pointer, jstring uri_);
@@ -64,10 +68,33 @@ JNIEXPORT jint JNICALL
     Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_openFile(
     JNIEnv *env, jobject instance, jlong pointer, jstring uri_, jstring mode_);
 
+JNIEXPORT jlong JNICALL
+    Java_com_google_android_sambadocumentsprovider_nativefacade_NativeSambaFacade_copy(
+    JNIEnv *env,
+    jobject instance,
+    jlong pointer,
+    jstring uri_,
+    jstring newUri_,
+    jlong offset,
+    jlong count);
+
 JNIEXPORT jobject JNICALL
     Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_readDir(
     JNIEnv *env, jobject instance, jlong pointer, jint fd);
 
+JNIEXPORT jobject JNICALL
+    Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_readDirPlus(
+    JNIEnv *env, jobject instance, jlong pointer, jint fd);
+
+JNIEXPORT jint JNICALL
+    Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_readDirBatch(
+    JNIEnv *env, jobject instance, jlong pointer, jint fd, jobject buffer, jboolean withStats);
+
+JNIEXPORT void JNICALL
+    Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_watch(
+    JNIEnv *env, jobject instance, jlong pointer, jint fd, jint filter, jint timeoutMs,
+    jobject listener);
+
 JNIEXPORT void JNICALL
     Java_com_google_android_sambadocumentsprovider_nativefacade_SambaDir_close(
     JNIEnv *env, jobject instance, jlong pointer, jint fd);
@@ -76,6 +103,11 @@ JNIEXPORT jlong JNICALL
     Java_com_google_android_sambadocumentsprovider_nativefacade_SambaFile_read(
     JNIEnv *env, jobject instance, jlong pointer, jint fd, jobject buffer, jint maxlen);
 
+JNIEXPORT jint JNICALL
+    Java_com_google_android_sambadocumentsprovider_nativefacade_SambaFile_readArray(
+    JNIEnv *env, jobject instance, jlong pointer, jint fd, jobject chunk, jint chunkSize,
+    jbyteArray array, jint offset, jint maxlen);
+
 JNIEXPORT jlong JNICALL
     Java_com_google_android_sambadocumentsprovider_nativefacade_SambaFile_seek(
     JNIEnv *env, jobject instance, jlong pointer, jint fd, jlong offset, jint whence);
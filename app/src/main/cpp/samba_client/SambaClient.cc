@@ -19,6 +19,7 @@
 #include "SambaClient.h"
 #include "credential_cache/CredentialCache.h"
 
+#include <mutex>
 #include <stdlib.h>
 #include <string>
 
@@ -28,6 +29,8 @@ namespace SambaClient {
 
 const CredentialCache *credentialCache_;
 
+static std::once_flag threadInitFlag_;
+
 SambaClient::~SambaClient() {
   LOGD(TAG, "Destroying SambaClient.");
   if (sambaContext && smbc_free_context(sambaContext, true)) {
@@ -42,6 +45,10 @@ bool SambaClient::Init(const bool debug, const CredentialCache *credentialCache)
   LOGD(TAG, "Initializing SambaClient. Debug: %d CredentialCache: %x HOME: %s",
        debug, credentialCache, getenv("HOME"));
 
+  // Several Samba contexts may be used concurrently from different threads. libsmbclient needs
+  // its thread hooks installed once before any of them is created.
+  std::call_once(threadInitFlag_, smbc_thread_posix);
+
   sambaContext = smbc_new_context();
   if (!sambaContext) {
     LOGE(TAG, "Failed to create a Samba context.");
@@ -63,9 +70,6 @@ bool SambaClient::Init(const bool debug, const CredentialCache *credentialCache)
     return false;
   }
 
-  LOGD(TAG, "Setting Samba context.");
-  smbc_set_context(sambaContext);
-
   LOGD(TAG, "Set up Samba context.");
 
   credentialCache_ = credentialCache;
@@ -104,6 +108,21 @@ void SambaClient::GetAuthData(const char *server,
   password[tuple.password.length()] = '\0';
 }
 
+int SambaClient::AddHandle(::SMBCFILE *file) {
+  const int handle = nextHandle_++;
+  handles_[handle] = file;
+  return handle;
+}
+
+::SMBCFILE *SambaClient::GetHandle(const int handle) const {
+  const auto it = handles_.find(handle);
+  return it == handles_.end() ? NULL : it->second;
+}
+
+void SambaClient::RemoveHandle(const int handle) {
+  handles_.erase(handle);
+}
+
 static const char* getTypeName(unsigned int smbc_type) {
   switch (smbc_type) {
     case SMBC_WORKGROUP:
@@ -132,20 +151,26 @@ static const char* getTypeName(unsigned int smbc_type) {
 int
 SambaClient::OpenDir(const char *url) {
   LOGD(TAG, "Opening dir at %s.", url);
-  const int fd = smbc_opendir(url);
-  if (fd < 0) {
+  ::SMBCFILE *dir = smbc_getFunctionOpendir(sambaContext)(sambaContext, url);
+  if (dir == NULL) {
     int err = errno;
     LOGE(TAG, "Failed to open dir at %s. Errno: %x", url, err);
     return -err;
   }
 
-  return fd;
+  return AddHandle(dir);
 }
 
 int
 SambaClient::ReadDir(const int dh, const struct smbc_dirent ** dirent) {
   LOGD(TAG, "Reading dir for %x.", dh);
-  *dirent = smbc_readdir(dh);
+  ::SMBCFILE *dir = GetHandle(dh);
+  if (dir == NULL) {
+    *dirent = NULL;
+    return -EBADF;
+  }
+
+  *dirent = smbc_getFunctionReaddir(sambaContext)(sambaContext, dir);
   if (*dirent == NULL) {
     LOGV(TAG, "Finished reading dir ent for %x.", dh);
   } else {
@@ -155,10 +180,37 @@ SambaClient::ReadDir(const int dh, const struct smbc_dirent ** dirent) {
   return 0;
 }
 
+#ifdef SAMBA_HAS_READDIRPLUS2
+int
+SambaClient::ReadDirPlus(const int dh, const struct libsmb_file_info **info, struct stat *st) {
+  LOGD(TAG, "Reading dir with stats for %x.", dh);
+  ::SMBCFILE *dir = GetHandle(dh);
+  if (dir == NULL) {
+    *info = NULL;
+    return -EBADF;
+  }
+
+  *info = smbc_getFunctionReaddirPlus2(sambaContext)(sambaContext, dir, st);
+  if (*info == NULL) {
+    LOGV(TAG, "Finished reading dir ent for %x.", dh);
+  } else {
+    LOGV(TAG, "Found entry name: %s, size: %lld.", (*info)->name,
+         static_cast<long long>(st->st_size));
+  }
+  return 0;
+}
+#endif
+
 int
 SambaClient::CloseDir(const int dh) {
   LOGD(TAG, "Close dir for %x.", dh);
-  const int ret = smbc_closedir(dh);
+  ::SMBCFILE *dir = GetHandle(dh);
+  if (dir == NULL) {
+    return -EBADF;
+  }
+  RemoveHandle(dh);
+
+  const int ret = smbc_getFunctionClosedir(sambaContext)(sambaContext, dir);
 
   if (ret) {
     int err = errno;
@@ -169,10 +221,81 @@ SambaClient::CloseDir(const int dh) {
   return 0;
 }
 
+#ifdef SAMBA_HAS_NOTIFY
+static int
+NotifyCallback(const struct smbc_notify_callback_action *actions,
+               size_t numActions,
+               void *privateData) {
+  const Callback<uint32_t, const char *> &callback =
+      *static_cast<const Callback<uint32_t, const char *> *>(privateData);
+
+  if (numActions == 0) {
+    // Timed out without any change. Let the caller decide whether to keep waiting.
+    return callback(0, NULL);
+  }
+
+  for (size_t i = 0; i < numActions; ++i) {
+    const int ret = callback(actions[i].action, actions[i].filename);
+    if (ret) {
+      return ret;
+    }
+  }
+  return 0;
+}
+#endif
+
+bool
+SambaClient::IsNotifySupported() {
+#ifdef SAMBA_HAS_NOTIFY
+  return true;
+#else
+  return false;
+#endif
+}
+
+int
+SambaClient::Notify(const int dh,
+                    const uint32_t filter,
+                    const unsigned timeoutMs,
+                    const Callback<uint32_t, const char *> &callback) {
+  LOGD(TAG, "Watching changes of %x.", dh);
+  ::SMBCFILE *dir = GetHandle(dh);
+  if (dir == NULL) {
+    return -EBADF;
+  }
+
+#ifdef SAMBA_HAS_NOTIFY
+  const int ret = smbc_getFunctionNotify(sambaContext)(
+      sambaContext,
+      dir,
+      false /* recursive */,
+      filter,
+      timeoutMs,
+      NotifyCallback,
+      const_cast<Callback<uint32_t, const char *> *>(&callback));
+  if (ret < 0) {
+    int err = errno;
+    LOGW(TAG, "Stopped watching changes of %x. Errno: %x.", dh, err);
+    return -err;
+  }
+
+  LOGV(TAG, "Stopped watching changes of %x.", dh);
+  return 0;
+#else
+  LOGW(TAG, "libsmbclient can't watch changes of %x.", dh);
+  return -ENOSYS;
+#endif
+}
+
 int
 SambaClient::Fstat(const int fd, struct stat * const st) {
   LOGD(TAG, "Getting stat for %x.", fd);
-  int result = smbc_fstat(fd, st);
+  ::SMBCFILE *file = GetHandle(fd);
+  if (file == NULL) {
+    return -EBADF;
+  }
+
+  int result = smbc_getFunctionFstat(sambaContext)(sambaContext, file, st);
   if (result < 0) {
     int err = errno;
     LOGE(TAG, "Failed to obtain stat for %x. Errno: %x.", fd, err);
@@ -185,7 +308,7 @@ SambaClient::Fstat(const int fd, struct stat * const st) {
 int
 SambaClient::Stat(const char *url, struct stat * const st) {
   LOGD(TAG, "Getting stat for %s.", url);
-  int result = smbc_stat(url, st);
+  int result = smbc_getFunctionStat(sambaContext)(sambaContext, url, st);
   if (result < 0) {
     int err = errno;
     LOGE(TAG, "Failed to obtain stat for %s. Errno: %x.", url, err);
@@ -198,14 +321,14 @@ SambaClient::Stat(const char *url, struct stat * const st) {
 int
 SambaClient::CreateFile(const char *url) {
   LOGD(TAG, "Creating a file at %s.", url);
-  int fd = smbc_creat(url, 0755);
-  if (fd < 0) {
+  ::SMBCFILE *file = smbc_getFunctionCreat(sambaContext)(sambaContext, url, 0755);
+  if (file == NULL) {
     int err = errno;
     LOGE(TAG, "Failed to create a file at %s. Errno: %x.", url, err);
     return -err;
   }
 
-  if (smbc_close(fd) < 0) {
+  if (smbc_getFunctionClose(sambaContext)(sambaContext, file) < 0) {
     LOGW(TAG, "Failed to close the created file at %s.", url);
   }
   return 0;
@@ -214,7 +337,7 @@ SambaClient::CreateFile(const char *url) {
 int
 SambaClient::Mkdir(const char *url) {
   LOGD(TAG, "Making dir at %s.", url);
-  int result = smbc_mkdir(url, 0755);
+  int result = smbc_getFunctionMkdir(sambaContext)(sambaContext, url, 0755);
   if (result < 0) {
     int err = errno;
     LOGE(TAG, "Failed to make dir at %s. Errno: %x.", url, err);
@@ -227,7 +350,7 @@ SambaClient::Mkdir(const char *url) {
 int
 SambaClient::Rename(const char *url, const char *nurl) {
   LOGD(TAG, "Renaming %s to %s.", url, nurl);
-  int result = smbc_rename(url, nurl);
+  int result = smbc_getFunctionRename(sambaContext)(sambaContext, url, sambaContext, nurl);
   if (result < 0) {
     int err = errno;
     LOGE(TAG, "Failed to rename %s to %s. Errno: %x.", url, nurl, err);
@@ -239,7 +362,7 @@ SambaClient::Rename(const char *url, const char *nurl) {
 int
 SambaClient::Unlink(const char *url) {
   LOGD(TAG, "Unlinking %s.", url);
-  int result = smbc_unlink(url);
+  int result = smbc_getFunctionUnlink(sambaContext)(sambaContext, url);
   if (result < 0) {
     int err = errno;
     LOGE(TAG, "Failed to unlink %s. Errno: %x.", url, err);
@@ -251,7 +374,7 @@ SambaClient::Unlink(const char *url) {
 int
 SambaClient::Rmdir(const char *url) {
   LOGD(TAG, "Removing dir at %s.", url);
-  int result = smbc_rmdir(url);
+  int result = smbc_getFunctionRmdir(sambaContext)(sambaContext, url);
   if (result < 0) {
     int err = errno;
     LOGE(TAG, "Failed to remove dir at %s. Errno: %x.", url, err);
@@ -262,14 +385,15 @@ SambaClient::Rmdir(const char *url) {
 
 int SambaClient::OpenFile(const char *url, const int flag, const mode_t mode) {
   LOGD(TAG, "Opening file at %s with flag %x.", url, flag);
-  int fd = smbc_open(url, flag, mode);
-  if (fd < 0) {
+  ::SMBCFILE *file = smbc_getFunctionOpen(sambaContext)(sambaContext, url, flag, mode);
+  if (file == NULL) {
     int err = errno;
     LOGE(TAG, "Failed to open file at %s. Errno: %x", url, err);
     return -err;
-  } else {
-    LOGV(TAG, "Opened file at %s with fd %x.", url, fd);
   }
+
+  const int fd = AddHandle(file);
+  LOGV(TAG, "Opened file at %s with fd %x.", url, fd);
   return fd;
 }
 
@@ -277,7 +401,12 @@ off_t
 SambaClient::SeekFile(const int fd, const off_t offset, const int whence) {
   LOGV(TAG, "Set offset to %x for file with fd %x", offset, fd);
 
-  off_t result = smbc_lseek(fd, offset, whence);
+  ::SMBCFILE *file = GetHandle(fd);
+  if (file == NULL) {
+    return -EBADF;
+  }
+
+  off_t result = smbc_getFunctionLseek(sambaContext)(sambaContext, file, offset, whence);
   if (result < 0) {
     int err = errno;
     LOGE(TAG, "Failed to seek in file %x. Errno: %x", fd, err);
@@ -290,7 +419,12 @@ SambaClient::SeekFile(const int fd, const off_t offset, const int whence) {
 ssize_t
 SambaClient::ReadFile(const int fd, void *buffer, const size_t maxlen) {
   LOGV(TAG, "Reading max %lu bytes from file with fd %x", maxlen, fd);
-  const ssize_t size = smbc_read(fd, buffer, maxlen);
+  ::SMBCFILE *file = GetHandle(fd);
+  if (file == NULL) {
+    return -EBADF;
+  }
+
+  const ssize_t size = smbc_getFunctionRead(sambaContext)(sambaContext, file, buffer, maxlen);
   if (size < 0) {
     int err = errno;
     LOGE(TAG, "Failed to read file with fd %x. Errno: %x", fd, err);
@@ -304,7 +438,12 @@ SambaClient::ReadFile(const int fd, void *buffer, const size_t maxlen) {
 ssize_t
 SambaClient::WriteFile(const int fd, void *buffer, const size_t length) {
   LOGV(TAG, "Writing %lu bytes to file with fd %x.", length, fd);
-  const ssize_t size = smbc_write(fd, buffer, length);
+  ::SMBCFILE *file = GetHandle(fd);
+  if (file == NULL) {
+    return -EBADF;
+  }
+
+  const ssize_t size = smbc_getFunctionWrite(sambaContext)(sambaContext, file, buffer, length);
   if (size < 0) {
     int err = errno;
     LOGE(TAG, "Failed to write file with fd %x. Errno: %x", fd, err);
@@ -317,7 +456,13 @@ SambaClient::WriteFile(const int fd, void *buffer, const size_t length) {
 
 int SambaClient::CloseFile(const int fd) {
   LOGD(TAG, "Closing file with fd: %x", fd);
-  int result = smbc_close(fd);
+  ::SMBCFILE *file = GetHandle(fd);
+  if (file == NULL) {
+    return -EBADF;
+  }
+  RemoveHandle(fd);
+
+  int result = smbc_getFunctionClose(sambaContext)(sambaContext, file);
   if (result < 0) {
     int err = errno;
     LOGE(TAG, "Failed to close file with fd: %x with errno: %x", fd, err);
@@ -326,4 +471,32 @@ int SambaClient::CloseFile(const int fd) {
   return 0;
 }
 
+static int
+SpliceCallback(off_t n, void *privateData) {
+  // Keep going until everything is copied.
+  return 1;
+}
+
+off_t
+SambaClient::Splice(const int srcFd, const int dstFd, const off_t count) {
+  LOGD(TAG, "Copying %lld bytes from %x to %x on the server.",
+       static_cast<long long>(count), srcFd, dstFd);
+  ::SMBCFILE *src = GetHandle(srcFd);
+  ::SMBCFILE *dst = GetHandle(dstFd);
+  if (src == NULL || dst == NULL) {
+    return -EBADF;
+  }
+
+  const off_t copied = smbc_getFunctionSplice(sambaContext)(
+      sambaContext, src, dst, count, SpliceCallback, NULL);
+  if (copied < 0) {
+    int err = errno;
+    LOGW(TAG, "Failed to copy from %x to %x on the server. Errno: %x.", srcFd, dstFd, err);
+    return -err;
+  }
+
+  LOGV(TAG, "Copied %lld bytes from %x to %x.", static_cast<long long>(copied), srcFd, dstFd);
+  return copied;
+}
+
 }
\ No newline at end of file
@@ -23,6 +23,7 @@
 #include "jni_helper/JniHelper.h"
 
 #include <sys/types.h>
+#include <unordered_map>
 #include <vector>
 
 namespace SambaClient {
@@ -39,8 +40,22 @@ class SambaClient {
 
   int ReadDir(const int dh, const struct smbc_dirent** dirent);
 
+#ifdef SAMBA_HAS_READDIRPLUS2
+  int ReadDirPlus(const int dh, const struct libsmb_file_info** info, struct stat *st);
+#endif
+
   int CloseDir(const int dh);
 
+  // Whether libsmbclient was built with change notifications. Notify fails with ENOSYS if not.
+  static bool IsNotifySupported();
+
+  // Blocks until the callback returns non-zero. The callback gets the action and the name of
+  // every change in the directory, or 0 and NULL every timeoutMs without changes.
+  int Notify(const int dh,
+             const uint32_t filter,
+             const unsigned timeoutMs,
+             const Callback<uint32_t, const char *> &callback);
+
   int Stat(const char *url, struct stat *st);
 
   int Fstat(const int fd, struct stat * const st);
@@ -64,9 +79,24 @@ class SambaClient {
   off_t SeekFile(const int fd, const off_t offset, const int whence);
 
   int CloseFile(const int fd);
+
+  // Copies count bytes from srcFd to dstFd on the server, without reading them. Returns the
+  // number of bytes copied or a negative errno.
+  off_t Splice(const int srcFd, const int dstFd, const off_t count);
  private:
   ::SMBCCTX *sambaContext = NULL;
 
+  // libsmbclient hands out SMBCFILE pointers for the context based API. Java side still refers
+  // to files and directories by integer handles, so keep a per context table of them.
+  std::unordered_map<int, ::SMBCFILE *> handles_;
+  int nextHandle_ = 1;
+
+  int AddHandle(::SMBCFILE *file);
+
+  ::SMBCFILE *GetHandle(const int handle) const;
+
+  void RemoveHandle(const int handle);
+
   static void GetAuthData(const char *server,
                    const char *share,
                    char *workgroup, int maxLenWorkgroup,
@@ -29,8 +29,10 @@ import android.util.Log;
 import com.google.android.sambadocumentsprovider.SambaConfiguration.OnConfigurationChangedListener;
 import com.google.android.sambadocumentsprovider.browsing.NetworkBrowser;
 import com.google.android.sambadocumentsprovider.cache.DocumentCache;
+import com.google.android.sambadocumentsprovider.cache.MetadataStore;
 import com.google.android.sambadocumentsprovider.nativefacade.CredentialCache;
-import com.google.android.sambadocumentsprovider.nativefacade.SambaMessageLooper;
+import com.google.android.sambadocumentsprovider.nativefacade.DirectoryWatcher;
+import com.google.android.sambadocumentsprovider.nativefacade.SambaClientPool;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbFacade;
 import java.io.File;
 
@@ -38,12 +40,19 @@ public class SambaProviderApplication extends Application {
 
   private static final String TAG = "SambaProviderApplication";
 
-  private final DocumentCache mCache = new DocumentCache();
+  // Number of native Samba contexts. Each one runs on its own worker thread.
+  private static final int SAMBA_CLIENT_POOL_SIZE = 4;
+  // Extra native Samba contexts that only run stats, so a large folder is stat'ed in parallel.
+  private static final int SAMBA_STAT_POOL_SIZE = 2;
+
+  private DocumentCache mCache;
   private final TaskManager mTaskManager = new TaskManager();
 
+  private SambaClientPool mClientPool;
   private SmbFacade mSambaClient;
   private ShareManager mShareManager;
   private NetworkBrowser mNetworkBrowser;
+  private ShareKeepAlive mShareKeepAlive;
 
   @Override
   public void onCreate() {
@@ -60,14 +69,21 @@ public class SambaProviderApplication extends Application {
 
     initializeSambaConf(context);
 
-    final SambaMessageLooper looper = new SambaMessageLooper();
-    CredentialCache credentialCache = looper.getCredentialCache();
-    mSambaClient = looper.getClient();
+    final MetadataStore metadataStore = new MetadataStore(context);
+    mCache = new DocumentCache(metadataStore);
+
+    mClientPool = new SambaClientPool(SAMBA_CLIENT_POOL_SIZE, SAMBA_STAT_POOL_SIZE);
+    CredentialCache credentialCache = mClientPool.getCredentialCache();
+    mSambaClient = mClientPool.getClient();
 
-    mShareManager = new ShareManager(context, credentialCache);
+    mShareManager = new ShareManager(context, credentialCache, metadataStore);
+    mCache.setPolicyResolver(mShareManager);
 
     mNetworkBrowser = new NetworkBrowser(mSambaClient, mTaskManager);
 
+    mShareKeepAlive = new ShareKeepAlive(mShareManager, mClientPool, mCache);
+    mShareKeepAlive.start();
+
     registerNetworkCallback(context);
   }
 
@@ -108,7 +124,12 @@ public class SambaProviderApplication extends Application {
         new NetworkCallback() {
           @Override
           public void onAvailable(Network network) {
-            mSambaClient.reset();
+            // Hosts that were unreachable may be reachable on the new network.
+            mCache.clearFailures();
+            // Only connections that really broke are rebuilt, so roaming keeps sessions and open
+            // files. This is also called right after registering if Wi-Fi or Ethernet is up,
+            // which warms up the shares at startup.
+            mShareKeepAlive.onNetworkChanged();
           }
         });
   }
@@ -125,6 +146,11 @@ public class SambaProviderApplication extends Application {
     return getApplication(context).mSambaClient;
   }
 
+  public static DirectoryWatcher createDirectoryWatcher(
+      Context context, DirectoryWatcher.Listener listener) {
+    return getApplication(context).mClientPool.createWatcher(listener);
+  }
+
   public static DocumentCache getDocumentCache(Context context) {
     return getApplication(context).mCache;
   }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.android.sambadocumentsprovider.cache.DocumentCache;
+import com.google.android.sambadocumentsprovider.nativefacade.SambaClientPool;
+import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the connections to mounted shares open so that the first request of the user doesn't
+ * have to wait for name resolution, connecting and session setup. Each share is stat'ed once when
+ * {@link #warmUp()} is called and then every few minutes.
+ *
+ * libsmbclient doesn't expose SMB2 ECHO, so a stat of the share root is the cheapest request
+ * that keeps the session busy.
+ */
+class ShareKeepAlive {
+
+  private static final String TAG = "ShareKeepAlive";
+
+  private static final long KEEP_ALIVE_INTERVAL_MINUTES = 4;
+  private static final int MAX_THREADS = 2;
+  private static final long MAX_BACKOFF_MS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+  private final ShareManager mShareManager;
+  private final SambaClientPool mClientPool;
+  private final SmbClient mClient;
+  private final DocumentCache mCache;
+
+  private final ScheduledThreadPoolExecutor mExecutor;
+
+  // Shares whose keepalive failed. They aren't pinged again until their backoff runs out. This is
+  // kept apart from the document cache's failures so that user requests still go through.
+  private final ConcurrentHashMap<String, Backoff> mBackoffs = new ConcurrentHashMap<>();
+
+  ShareKeepAlive(ShareManager shareManager, SambaClientPool clientPool, DocumentCache cache) {
+    mShareManager = shareManager;
+    mClientPool = clientPool;
+    mClient = clientPool.getClient();
+    mCache = cache;
+
+    mExecutor = new ScheduledThreadPoolExecutor(MAX_THREADS, new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, "ShareKeepAlive-" + mCount.getAndIncrement());
+      }
+    });
+  }
+
+  /**
+   * Starts sending keepalives. The first connection is made by {@link #warmUp()}.
+   */
+  void start() {
+    mExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        warmUp();
+      }
+    }, KEEP_ALIVE_INTERVAL_MINUTES, KEEP_ALIVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Checks the connections in the background after the network changed, rebuilds the broken ones
+   * and then reconnects to all mounted shares.
+   */
+  void onNetworkChanged() {
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        mClientPool.resetDisconnected();
+        mBackoffs.clear();
+        warmUp();
+      }
+    });
+  }
+
+  /**
+   * Connects to all mounted shares in the background.
+   */
+  void warmUp() {
+    for (final String uri : mShareManager) {
+      if (!mShareManager.isShareMounted(uri)) {
+        continue;
+      }
+      if (mCache.hasFailedRecently(Uri.parse(uri))) {
+        // Don't keep poking a server that is known to be down.
+        continue;
+      }
+      final Backoff backoff = mBackoffs.get(uri);
+      if (backoff != null && SystemClock.elapsedRealtime() < backoff.mRetryTime) {
+        continue;
+      }
+
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          ping(uri);
+        }
+      });
+    }
+  }
+
+  private void ping(String uri) {
+    try {
+      mClient.stat(uri);
+      mBackoffs.remove(uri);
+      if (BuildConfig.DEBUG) Log.d(TAG, "Connection to " + uri + " is up.");
+    } catch (IOException | RuntimeException e) {
+      // The user will see the error when the share is actually used.
+      Log.i(TAG, "Failed to connect to " + uri, e);
+      final Backoff last = mBackoffs.get(uri);
+      final long delay = (last == null)
+          ? TimeUnit.MILLISECONDS.convert(KEEP_ALIVE_INTERVAL_MINUTES, TimeUnit.MINUTES)
+          : Math.min(last.mDelay * 2, MAX_BACKOFF_MS);
+      mBackoffs.put(uri, new Backoff(delay));
+    }
+  }
+
+  private static class Backoff {
+    private final long mDelay;
+    private final long mRetryTime;
+
+    private Backoff(long delay) {
+      mDelay = delay;
+      mRetryTime = SystemClock.elapsedRealtime() + delay;
+    }
+  }
+}
@@ -19,15 +19,20 @@ package com.google.android.sambadocumentsprovider;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.JsonReader;
 import android.util.JsonToken;
 import android.util.JsonWriter;
 import android.util.Log;
 
+import com.google.android.sambadocumentsprovider.cache.CachePolicy;
+import com.google.android.sambadocumentsprovider.cache.MetadataStore;
 import com.google.android.sambadocumentsprovider.encryption.EncryptionException;
 import com.google.android.sambadocumentsprovider.encryption.EncryptionManager;
 import com.google.android.sambadocumentsprovider.nativefacade.CredentialCache;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -40,7 +45,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class ShareManager implements Iterable<String> {
+public class ShareManager implements Iterable<String>, CachePolicy.Resolver {
   private static final String TAG = "ShareManager";
 
   private static final String SERVER_CACHE_PREF_KEY = "ServerCachePref";
@@ -53,19 +58,28 @@ public class ShareManager implements Iterable<String> {
   private static final String WORKGROUP_KEY = "workgroup";
   private static final String USERNAME_KEY = "username";
   private static final String PASSWORD_KEY = "password";
+  private static final String CACHE_POLICY_KEY = "cachePolicy";
+  private static final String TTL_KEY = "ttl";
+  private static final String MAX_STALE_KEY = "maxStale";
+  private static final String REVALIDATE_KEY = "revalidate";
+
+  private static final Uri SMB_BASE_URI = Uri.parse("smb://");
 
   private final SharedPreferences mPref;
   private final Set<String> mServerStringSet;
   private final Set<String> mMountedServerSet = new HashSet<>();
   private final Map<String, String> mServerStringMap = new HashMap<>();
+  private final Map<String, CachePolicy> mCachePolicies = new HashMap<>();
   private final CredentialCache mCredentialCache;
+  private final MetadataStore mMetadataStore;
 
   private EncryptionManager mEncryptionManager;
 
   private final List<MountedShareChangeListener> mListeners = new ArrayList<>();
 
-  ShareManager(Context context, CredentialCache credentialCache) {
+  ShareManager(Context context, CredentialCache credentialCache, MetadataStore metadataStore) {
     mCredentialCache = credentialCache;
+    mMetadataStore = metadataStore;
 
     mEncryptionManager = new EncryptionManager(context);
 
@@ -86,7 +100,7 @@ public class ShareManager implements Iterable<String> {
         forceEncryption.add(serverString);
       }
 
-      String uri = decode(decryptedString, shareMap);
+      String uri = decode(decryptedString, shareMap, mCachePolicies);
       if (uri != null) {
         mServerStringMap.put(uri, serverString);
       }
@@ -146,9 +160,51 @@ public class ShareManager implements Iterable<String> {
     updateServersData(uri, tuple, mount);
   }
 
+  /**
+   * Changes how long documents of the share are cached. The policy is saved along with the share.
+   */
+  public synchronized void setCachePolicy(String uri, CachePolicy policy) throws IOException {
+    final String oldString = mServerStringMap.get(uri);
+    if (oldString == null) {
+      throw new FileNotFoundException("Share " + uri + " isn't stored.");
+    }
+
+    final Map<String, ShareTuple> shareMap = new HashMap<>(1);
+    try {
+      decode(mEncryptionManager.decrypt(oldString), shareMap, new HashMap<String, CachePolicy>());
+    } catch (EncryptionException e) {
+      throw new IllegalStateException("Failed to decrypt server data", e);
+    }
+    final ShareTuple tuple = shareMap.get(uri);
+    if (tuple == null) {
+      throw new IOException("Failed to load share " + uri);
+    }
+
+    mCachePolicies.put(uri, policy);
+    updateServersData(uri, tuple, false);
+  }
+
+  public synchronized CachePolicy getCachePolicy(String uri) {
+    final CachePolicy policy = mCachePolicies.get(uri);
+    return (policy == null) ? CachePolicy.DEFAULT : policy;
+  }
+
+  @Override
+  public CachePolicy getCachePolicy(Uri uri) {
+    final List<String> segments = uri.getPathSegments();
+    if (segments.isEmpty()) {
+      return CachePolicy.DEFAULT;
+    }
+    final Uri shareUri = SMB_BASE_URI.buildUpon()
+        .authority(uri.getAuthority())
+        .appendPath(segments.get(0))
+        .build();
+    return getCachePolicy(shareUri.toString());
+  }
+
   private void updateServersData(
           String uri, ShareTuple tuple, boolean shouldNotify) {
-    final String serverString = encode(uri, tuple);
+    final String serverString = encode(uri, tuple, mCachePolicies.get(uri));
     if (serverString == null) {
       throw new IllegalStateException("Failed to encode credential tuple.");
     }
@@ -156,6 +212,11 @@ public class ShareManager implements Iterable<String> {
     String encryptedString;
     try {
       encryptedString = mEncryptionManager.encrypt(serverString);
+      // Replace the previous entry of this share, if any.
+      final String oldString = mServerStringMap.get(uri);
+      if (oldString != null) {
+        mServerStringSet.remove(oldString);
+      }
       mServerStringSet.add(encryptedString);
     } catch (EncryptionException e) {
       throw new IllegalStateException("Failed to encrypt server data", e);
@@ -219,10 +280,13 @@ public class ShareManager implements Iterable<String> {
 
     mServerStringMap.remove(uri);
     mMountedServerSet.remove(uri);
+    mCachePolicies.remove(uri);
 
     mPref.edit().putStringSet(SERVER_STRING_SET_KEY, mServerStringSet).apply();
 
     mCredentialCache.removeCredential(uri);
+    // Listings of the share are saved in plain text. Don't keep them once it's gone.
+    mMetadataStore.remove(Uri.parse(uri));
 
     notifyServerChange();
 
@@ -261,7 +325,7 @@ public class ShareManager implements Iterable<String> {
     mListeners.remove(listener);
   }
 
-  private static String encode(String uri, ShareTuple tuple) {
+  private static String encode(String uri, ShareTuple tuple, @Nullable CachePolicy policy) {
     final StringWriter stringWriter = new StringWriter();
     try (final JsonWriter jsonWriter = new JsonWriter(stringWriter)) {
       jsonWriter.beginObject();
@@ -269,6 +333,11 @@ public class ShareManager implements Iterable<String> {
 
       jsonWriter.name(CREDENTIAL_TUPLE_KEY);
       encodeTuple(jsonWriter, tuple);
+
+      if (policy != null) {
+        jsonWriter.name(CACHE_POLICY_KEY);
+        encodeCachePolicy(jsonWriter, policy);
+      }
       jsonWriter.endObject();
     } catch (IOException e) {
       Log.e(TAG, "Failed to encode credential for " + uri);
@@ -291,13 +360,24 @@ public class ShareManager implements Iterable<String> {
     }
   }
 
-  private static String decode(String content, Map<String, ShareTuple> shareMap) {
+  private static void encodeCachePolicy(JsonWriter writer, CachePolicy policy)
+      throws IOException {
+    writer.beginObject();
+    writer.name(TTL_KEY).value(policy.getTtl());
+    writer.name(MAX_STALE_KEY).value(policy.getMaxStale());
+    writer.name(REVALIDATE_KEY).value(policy.shouldRevalidate());
+    writer.endObject();
+  }
+
+  private static String decode(
+      String content, Map<String, ShareTuple> shareMap, Map<String, CachePolicy> policyMap) {
     final StringReader stringReader = new StringReader(content);
     try (final JsonReader jsonReader = new JsonReader(stringReader)) {
       jsonReader.beginObject();
 
       String uri = null;
       ShareTuple tuple = null;
+      CachePolicy policy = null;
       while (jsonReader.hasNext()) {
         final String name = jsonReader.nextName();
         switch (name) {
@@ -307,6 +387,9 @@ public class ShareManager implements Iterable<String> {
           case CREDENTIAL_TUPLE_KEY:
             tuple = decodeTuple(jsonReader);
             break;
+          case CACHE_POLICY_KEY:
+            policy = decodeCachePolicy(jsonReader);
+            break;
           default:
             Log.w(TAG, "Ignoring unknown key " + name);
         }
@@ -317,6 +400,9 @@ public class ShareManager implements Iterable<String> {
         throw new IllegalStateException("Either uri or tuple is null.");
       }
       shareMap.put(uri, tuple);
+      if (policy != null) {
+        policyMap.put(uri, policy);
+      }
 
       return uri;
     } catch (IOException e) {
@@ -361,6 +447,35 @@ public class ShareManager implements Iterable<String> {
     return new ShareTuple(workgroup, username, password, mounted);
   }
 
+  private static CachePolicy decodeCachePolicy(JsonReader reader) throws IOException {
+    long ttl = CachePolicy.DEFAULT.getTtl();
+    long maxStale = CachePolicy.DEFAULT.getMaxStale();
+    boolean revalidate = CachePolicy.DEFAULT.shouldRevalidate();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+
+      switch (name) {
+        case TTL_KEY:
+          ttl = reader.nextLong();
+          break;
+        case MAX_STALE_KEY:
+          maxStale = reader.nextLong();
+          break;
+        case REVALIDATE_KEY:
+          revalidate = reader.nextBoolean();
+          break;
+        default:
+          Log.w(TAG, "Ignoring unknown key " + name);
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return new CachePolicy(ttl, maxStale, revalidate);
+  }
+
   private static class ShareTuple {
     private static final ShareTuple EMPTY_TUPLE = new ShareTuple("", "", "", true);
 
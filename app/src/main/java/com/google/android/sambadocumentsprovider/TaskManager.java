@@ -22,32 +22,188 @@ import android.os.AsyncTask;
 import android.os.AsyncTask.Status;
 import android.util.Log;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TaskManager {
 
   private static final String TAG = "TaskManager";
 
+  private static final int DEFAULT_MAX_TASKS_PER_SERVER = 4;
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+  private static final int MAX_HELPER_THREADS = 6;
+
   private final Map<Uri, AsyncTask> mTasks = new HashMap<>();
 
-  private final Executor mExecutor = Executors.newCachedThreadPool();
+  private final Map<String, ThreadPoolExecutor> mServerExecutors = new HashMap<>();
+  private final int mMaxTasksPerServer;
+
+  // I/O tasks pump data through a pipe for as long as the file stays open, so they can't be
+  // bounded without the risk of one client starving another.
+  private final Executor mIoExecutor = Executors.newCachedThreadPool();
+
+  private final ThreadPoolExecutor mHelperExecutor;
+
+  public TaskManager() {
+    this(DEFAULT_MAX_TASKS_PER_SERVER);
+  }
+
+  /**
+   * @param maxTasksPerServer Number of tasks that may run at the same time against one server.
+   *                          Tasks beyond that wait in the server's own queue.
+   */
+  public TaskManager(int maxTasksPerServer) {
+    if (maxTasksPerServer < 1) {
+      throw new IllegalArgumentException("maxTasksPerServer must be positive.");
+    }
+    mMaxTasksPerServer = maxTasksPerServer;
 
-  public <T> void runTask(Uri uri, AsyncTask<T, ?, ?> task, T... args) {
+    mHelperExecutor = new ThreadPoolExecutor(
+        MAX_HELPER_THREADS,
+        MAX_HELPER_THREADS,
+        IDLE_THREAD_TIMEOUT_SECONDS,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new NamedThreadFactory("helper"));
+    mHelperExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return The task that is in charge of the uri, which is either the given task or the one that
+   * was already running for the uri.
+   */
+  public <T> AsyncTask<?, ?, ?> runTask(Uri uri, AsyncTask<T, ?, ?> task, T... args) {
     synchronized (mTasks) {
-      if (!mTasks.containsKey(uri) || mTasks.get(uri).getStatus() == Status.FINISHED) {
+      final AsyncTask<?, ?, ?> runningTask = mTasks.get(uri);
+      if (runningTask == null || runningTask.getStatus() == Status.FINISHED
+          || runningTask.isCancelled()) {
         mTasks.put(uri, task);
-        // TODO: Use different executor for different servers.
-        task.executeOnExecutor(mExecutor, args);
+        final String server = getServer(uri);
+        task.executeOnExecutor(getServerExecutor(server), args);
+        if (BuildConfig.DEBUG) {
+          Log.d(TAG, "Ran task for " + uri + ". Server " + server + " has "
+              + getActiveTaskCount(server) + " active and " + getQueuedTaskCount(server)
+              + " queued tasks.");
+        }
+        return task;
       } else {
         Log.i(TAG,
             "Ignore this task for " + uri + " to avoid running multiple updates at the same time.");
+        return runningTask;
       }
     }
   }
 
   public void runIoTask(AsyncTask<Void, Void, Void> task) {
-    task.executeOnExecutor(mExecutor);
+    task.executeOnExecutor(mIoExecutor);
+  }
+
+  /**
+   * @return Executor for work that a running task splits off to do in parallel. Tasks must not
+   * wait for work on it that hasn't started yet.
+   */
+  public Executor getHelperExecutor() {
+    return mHelperExecutor;
+  }
+
+  /**
+   * @return Number of tasks waiting to run against the server.
+   */
+  public int getQueuedTaskCount(String server) {
+    final ThreadPoolExecutor executor = findServerExecutor(server);
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+  /**
+   * @return Number of tasks currently running against the server.
+   */
+  public int getActiveTaskCount(String server) {
+    final ThreadPoolExecutor executor = findServerExecutor(server);
+    return executor == null ? 0 : executor.getActiveCount();
+  }
+
+  /**
+   * @return Queue depth and active count of every server with a live executor, for dumps.
+   */
+  public String dumpServerStats() {
+    final StringBuilder builder = new StringBuilder();
+    synchronized (mServerExecutors) {
+      for (Map.Entry<String, ThreadPoolExecutor> entry : mServerExecutors.entrySet()) {
+        final ThreadPoolExecutor executor = entry.getValue();
+        builder.append(entry.getKey())
+            .append(": active=").append(executor.getActiveCount())
+            .append(" queued=").append(executor.getQueue().size())
+            .append('\n');
+      }
+    }
+    return builder.toString();
+  }
+
+  private ThreadPoolExecutor findServerExecutor(String server) {
+    synchronized (mServerExecutors) {
+      return mServerExecutors.get(normalizeServer(server));
+    }
+  }
+
+  private Executor getServerExecutor(final String server) {
+    synchronized (mServerExecutors) {
+      ThreadPoolExecutor executor = mServerExecutors.get(server);
+      if (executor == null) {
+        evictIdleExecutorsLocked();
+        executor = new ThreadPoolExecutor(
+            mMaxTasksPerServer,
+            mMaxTasksPerServer,
+            IDLE_THREAD_TIMEOUT_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new NamedThreadFactory(server));
+        executor.allowCoreThreadTimeOut(true);
+        mServerExecutors.put(server, executor);
+      }
+      return executor;
+    }
+  }
+
+  /**
+   * Forgets executors of servers that haven't had tasks for a while. Their threads have timed out
+   * already, so there is nothing to shut down. Tasks for those servers get a new executor.
+   */
+  private void evictIdleExecutorsLocked() {
+    final Iterator<ThreadPoolExecutor> iterator = mServerExecutors.values().iterator();
+    while (iterator.hasNext()) {
+      final ThreadPoolExecutor executor = iterator.next();
+      if (executor.getPoolSize() == 0 && executor.getQueue().isEmpty()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private static String getServer(Uri uri) {
+    return normalizeServer(uri.getAuthority());
+  }
+
+  private static String normalizeServer(String server) {
+    return server == null ? "" : server.toLowerCase();
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String mName;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    private NamedThreadFactory(String name) {
+      mName = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(r, "TaskManager-" + mName + "-" + mCount.getAndIncrement());
+    }
   }
 }
@@ -22,6 +22,7 @@ import android.app.ProgressDialog;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
 import android.support.design.widget.Snackbar;
@@ -40,6 +41,7 @@ import com.google.android.sambadocumentsprovider.SambaProviderApplication;
 import com.google.android.sambadocumentsprovider.ShareManager;
 import com.google.android.sambadocumentsprovider.base.AuthFailedException;
 import com.google.android.sambadocumentsprovider.base.OnTaskFinishedCallback;
+import com.google.android.sambadocumentsprovider.cache.DocumentCache;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
 
 public class AuthActivity extends AppCompatActivity {
@@ -57,6 +59,7 @@ public class AuthActivity extends AppCompatActivity {
   private ProgressDialog progressDialog;
 
   private ShareManager mShareManager;
+  private DocumentCache mCache;
   private SmbClient mClient;
 
   private final View.OnClickListener mLoginListener = new View.OnClickListener() {
@@ -72,6 +75,8 @@ public class AuthActivity extends AppCompatActivity {
       progressDialog.dismiss();
 
       if (status == SUCCEEDED) {
+        // Let the provider try the share again with the new credentials right away.
+        mCache.clearFailures(Uri.parse(mSharePathEditText.getText().toString()));
         setResult(RESULT_OK);
         finish();
       } else {
@@ -89,6 +94,7 @@ public class AuthActivity extends AppCompatActivity {
 
     final Context context = getApplicationContext();
     mShareManager = SambaProviderApplication.getServerManager(context);
+    mCache = SambaProviderApplication.getDocumentCache(context);
     mClient = SambaProviderApplication.getSambaClient(context);
 
     Intent authIntent = getIntent();
@@ -18,6 +18,8 @@
 package com.google.android.sambadocumentsprovider.base;
 
 import android.support.annotation.IntDef;
+import android.support.annotation.Nullable;
+import android.system.StructStat;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -43,11 +45,17 @@ public class DirectoryEntry {
   private final int mType;
   private final String mComment;
   private String mName;
+  private final @Nullable StructStat mStat;
 
   public DirectoryEntry(@Type int type, String comment, String name) {
+    this(type, comment, name, null);
+  }
+
+  public DirectoryEntry(@Type int type, String comment, String name, @Nullable StructStat stat) {
     mType = type;
     mComment = comment;
     mName = name;
+    mStat = stat;
   }
 
   public @Type int getType() {
@@ -62,6 +70,14 @@ public class DirectoryEntry {
     return mName;
   }
 
+  /**
+   * @return The stat returned together with the directory listing, or {@code null} if the
+   * listing didn't include it.
+   */
+  public @Nullable StructStat getStat() {
+    return mStat;
+  }
+
   public void setName(String newName) {
     mName = newName;
   }
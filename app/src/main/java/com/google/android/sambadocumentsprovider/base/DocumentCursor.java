@@ -25,6 +25,8 @@ import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import com.google.android.sambadocumentsprovider.BuildConfig;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Use this class to avoid using {@link Cursor#setExtras(Bundle)} on API level < 23.
@@ -33,8 +35,18 @@ public class DocumentCursor extends MatrixCursor {
 
   private static final String TAG = "DocumentCursor";
 
+  // The latest cursor that shows the progress of each loading task. A task that publishes progress
+  // makes the client requery and close the previous cursor, which must not cancel the task. The
+  // owner removes its entry when it's closed.
+  private static final Map<AsyncTask<?, ?, ?>, DocumentCursor> sTaskOwners = new HashMap<>();
+
   private Bundle mExtra;
   private AsyncTask<?, ?, ?> mLoadingTask;
+  private @Nullable OnCloseListener mOnCloseListener;
+
+  public interface OnCloseListener {
+    void onClose();
+  }
 
   public DocumentCursor(String[] projection) {
     super(projection);
@@ -42,6 +54,13 @@ public class DocumentCursor extends MatrixCursor {
 
   public void setLoadingTask(AsyncTask<?, ?, ?> task) {
     mLoadingTask = task;
+    synchronized (sTaskOwners) {
+      sTaskOwners.put(task, this);
+    }
+  }
+
+  public void setOnCloseListener(@Nullable OnCloseListener listener) {
+    mOnCloseListener = listener;
   }
 
   @Override
@@ -57,7 +76,12 @@ public class DocumentCursor extends MatrixCursor {
   @Override
   public void close() {
     super.close();
-    if (mLoadingTask != null && mLoadingTask.getStatus() != Status.FINISHED) {
+    if (mOnCloseListener != null) {
+      mOnCloseListener.onClose();
+      mOnCloseListener = null;
+    }
+    if (mLoadingTask != null && releaseOwnership(mLoadingTask)
+        && mLoadingTask.getStatus() != Status.FINISHED) {
       if(BuildConfig.DEBUG) Log.d(TAG, "Cursor is closed. Cancel the loading task " + mLoadingTask);
       // Interrupting the task is not a good choice as it's waiting for the Samba client thread
       // returning the result. Interrupting the task only frees the task from waiting for the
@@ -65,4 +89,14 @@ public class DocumentCursor extends MatrixCursor {
       mLoadingTask.cancel(false);
     }
   }
+
+  private boolean releaseOwnership(AsyncTask<?, ?, ?> task) {
+    synchronized (sTaskOwners) {
+      if (sTaskOwners.get(task) != this) {
+        return false;
+      }
+      sTaskOwners.remove(task);
+      return true;
+    }
+  }
 }
@@ -39,7 +39,8 @@ public class DocumentIdHelper {
   }
 
   public static Uri toUri(String documentId) {
-    return Uri.parse(toUriString(documentId));
+    // The uri of a path that's in use is only built once.
+    return DocumentPath.fromDocumentId(toUriString(documentId)).toUri();
   }
 
   public static String toUriString(String documentId) {
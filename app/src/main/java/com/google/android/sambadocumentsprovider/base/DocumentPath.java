@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.base;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interned location of a document: a pointer to the parent plus one segment of the uri. There is
+ * only one instance per location, so paths compare by identity, hash in constant time, and
+ * finding the parent or a child doesn't parse or build any uri. The uri and the document ID are
+ * built once per path, the same way {@link Uri.Builder#appendPath(String)} would build them.
+ *
+ * Paths are only weakly held by the intern tables, so the ones nobody uses any more go away.
+ */
+public final class DocumentPath {
+
+  private static final Uri SMB_BASE_URI = Uri.parse("smb://");
+  private static final int MIN_PURGE_THRESHOLD = 16;
+
+  private static final DocumentPath NETWORK = new DocumentPath(null, "");
+
+  // Guarded by itself. Keyed by the document ID held by the path, so entries live as long as it.
+  private static final Map<String, WeakReference<DocumentPath>> sDocumentIds = new WeakHashMap<>();
+
+  private final @Nullable DocumentPath mParent;
+  // The host for servers, otherwise the encoded path segment.
+  private final String mSegment;
+  private final int mHash;
+
+  // Guarded by this. Created with the first child.
+  private @Nullable Map<String, WeakReference<DocumentPath>> mChildren;
+  private int mPurgeThreshold = MIN_PURGE_THRESHOLD;
+
+  private volatile Uri mUri;
+  private volatile String mDocumentId;
+
+  private DocumentPath(@Nullable DocumentPath parent, String segment) {
+    mParent = parent;
+    mSegment = segment;
+    mHash = (parent == null) ? 0 : 31 * parent.mHash + segment.hashCode();
+  }
+
+  public static DocumentPath fromUri(Uri uri) {
+    DocumentPath path = NETWORK;
+    final String host = uri.getAuthority();
+    if (TextUtils.isEmpty(host)) {
+      return path;
+    }
+    path = path.getSegmentChild(host);
+
+    final String encodedPath = uri.getEncodedPath();
+    if (encodedPath == null) {
+      return path;
+    }
+    int start = 0;
+    while (start < encodedPath.length()) {
+      int end = encodedPath.indexOf('/', start);
+      if (end < 0) {
+        end = encodedPath.length();
+      }
+      if (end > start) {
+        path = path.getSegmentChild(encodedPath.substring(start, end));
+      }
+      start = end + 1;
+    }
+    return path;
+  }
+
+  /**
+   * Looks up the path of a document ID without parsing it if the path is in use. IDs that aren't
+   * in the form this class builds, e.g. with a trailing slash, resolve to the path they name.
+   */
+  public static DocumentPath fromDocumentId(String documentId) {
+    synchronized (sDocumentIds) {
+      final WeakReference<DocumentPath> ref = sDocumentIds.get(documentId);
+      final DocumentPath path = (ref == null) ? null : ref.get();
+      if (path != null) {
+        return path;
+      }
+    }
+
+    final DocumentPath path = fromUri(Uri.parse(documentId));
+    synchronized (sDocumentIds) {
+      sDocumentIds.put(path.toString(), new WeakReference<>(path));
+    }
+    return path;
+  }
+
+  /**
+   * @return The parent, or {@code null} for the network root. Servers are children of the network
+   * root.
+   */
+  public @Nullable DocumentPath getParent() {
+    return mParent;
+  }
+
+  /**
+   * @param name Decoded name of the child, or the host if this is the network root.
+   */
+  public DocumentPath getChild(String name) {
+    return getSegmentChild(mParent == null ? name : Uri.encode(name));
+  }
+
+  public String getName() {
+    return (mParent == null || mParent.mParent == null) ? mSegment : Uri.decode(mSegment);
+  }
+
+  /**
+   * @return {@code true} if this path is the ancestor or one of its descendants.
+   */
+  public boolean isUnder(DocumentPath ancestor) {
+    for (DocumentPath path = this; path != null; path = path.mParent) {
+      if (path == ancestor) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return The path at the same place under to as this path is under from, or this path if it
+   * isn't under from.
+   */
+  public DocumentPath move(DocumentPath from, DocumentPath to) {
+    final ArrayDeque<String> segments = new ArrayDeque<>();
+    for (DocumentPath path = this; path != from; path = path.mParent) {
+      if (path == null) {
+        return this;
+      }
+      segments.push(path.mSegment);
+    }
+
+    DocumentPath moved = to;
+    while (!segments.isEmpty()) {
+      moved = moved.getSegmentChild(segments.pop());
+    }
+    return moved;
+  }
+
+  public Uri toUri() {
+    Uri uri = mUri;
+    if (uri == null) {
+      if (mParent == null) {
+        uri = SMB_BASE_URI;
+      } else if (mParent.mParent == null) {
+        uri = SMB_BASE_URI.buildUpon().authority(mSegment).build();
+      } else {
+        uri = mParent.toUri().buildUpon().appendEncodedPath(mSegment).build();
+      }
+      mUri = uri;
+    }
+    return uri;
+  }
+
+  /**
+   * @return The document ID of this path.
+   */
+  @Override
+  public String toString() {
+    String documentId = mDocumentId;
+    if (documentId == null) {
+      documentId = toUri().toString();
+      mDocumentId = documentId;
+    }
+    return documentId;
+  }
+
+  // Paths are interned, so identity is the same as equality.
+  @Override
+  public int hashCode() {
+    return mHash;
+  }
+
+  private synchronized DocumentPath getSegmentChild(String segment) {
+    if (mChildren == null) {
+      mChildren = new HashMap<>(4);
+    }
+
+    final WeakReference<DocumentPath> ref = mChildren.get(segment);
+    DocumentPath child = (ref == null) ? null : ref.get();
+    if (child == null) {
+      if (mChildren.size() >= mPurgeThreshold) {
+        purgeLocked();
+      }
+      child = new DocumentPath(this, segment);
+      mChildren.put(segment, new WeakReference<>(child));
+    }
+    return child;
+  }
+
+  /**
+   * Drops children that went away, and waits until the table doubled before doing it again.
+   */
+  private void purgeLocked() {
+    final Iterator<WeakReference<DocumentPath>> iterator = mChildren.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().get() == null) {
+        iterator.remove();
+      }
+    }
+    mPurgeThreshold = Math.max(MIN_PURGE_THRESHOLD, 2 * mChildren.size());
+  }
+}
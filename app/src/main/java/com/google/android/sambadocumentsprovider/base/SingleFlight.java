@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.base;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Makes concurrent calls for the same key share one execution. The first caller runs the call,
+ * and everyone who asks for the same key before it finishes waits for it and gets the same result
+ * or exception.
+ *
+ * Only use it for calls whose result can be shared, e.g. immutable values.
+ */
+public class SingleFlight<K, V> {
+
+  public interface Call<V> {
+    V call() throws IOException;
+  }
+
+  // Guarded by itself.
+  private final Map<K, Flight<V>> mFlights = new HashMap<>();
+
+  private int mShared;
+
+  public V execute(K key, Call<V> call) throws IOException {
+    Flight<V> flight;
+    final boolean isLeader;
+    synchronized (mFlights) {
+      flight = mFlights.get(key);
+      isLeader = (flight == null);
+      if (isLeader) {
+        flight = new Flight<>();
+        mFlights.put(key, flight);
+      } else {
+        ++mShared;
+      }
+    }
+
+    if (!isLeader) {
+      return flight.await();
+    }
+
+    boolean finished = false;
+    try {
+      flight.mResult = call.call();
+      finished = true;
+      return flight.mResult;
+    } catch (IOException | RuntimeException e) {
+      flight.mException = e;
+      finished = true;
+      throw e;
+    } finally {
+      if (!finished) {
+        flight.mException = new IOException("Call for " + key + " didn't finish.");
+      }
+      synchronized (mFlights) {
+        if (mFlights.get(key) == flight) {
+          mFlights.remove(key);
+        }
+      }
+      flight.mLatch.countDown();
+    }
+  }
+
+  /**
+   * Makes later callers for the key start a new call instead of joining the one in flight.
+   * Call this when the outcome of that call may be out of date, e.g. the document was modified.
+   */
+  public void forget(K key) {
+    synchronized (mFlights) {
+      mFlights.remove(key);
+    }
+  }
+
+  /**
+   * @return How many calls were answered by a call that was already in flight.
+   */
+  public int getSharedCount() {
+    synchronized (mFlights) {
+      return mShared;
+    }
+  }
+
+  private static class Flight<V> {
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private volatile V mResult;
+    private volatile Exception mException;
+
+    private V await() throws IOException {
+      try {
+        mLatch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a shared call.");
+      }
+
+      final Exception e = mException;
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      } else if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      return mResult;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.cache;
+
+import android.net.Uri;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the documents of a share are trusted. Documents younger than the TTL are fresh. After
+ * that they are still served for up to max-stale, and refreshed in the background if revalidation
+ * is enabled. Older documents are treated as if they weren't cached at all.
+ */
+public class CachePolicy {
+
+  public static final long UNLIMITED = Long.MAX_VALUE;
+
+  public static final CachePolicy DEFAULT =
+      new CachePolicy(TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES), UNLIMITED, true);
+
+  private final long mTtl;
+  private final long mMaxStale;
+  private final boolean mRevalidate;
+
+  /**
+   * @param ttl how long, in milliseconds, documents are fresh.
+   * @param maxStale how long, in milliseconds, documents may be served once they're no longer
+   *                 fresh, or {@link #UNLIMITED}.
+   * @param revalidate whether stale documents should be refreshed in the background.
+   */
+  public CachePolicy(long ttl, long maxStale, boolean revalidate) {
+    if (ttl < 0) {
+      throw new IllegalArgumentException("ttl is negative.");
+    }
+    if (maxStale < 0) {
+      throw new IllegalArgumentException("maxStale is negative.");
+    }
+    mTtl = ttl;
+    mMaxStale = maxStale;
+    mRevalidate = revalidate;
+  }
+
+  public long getTtl() {
+    return mTtl;
+  }
+
+  public long getMaxStale() {
+    return mMaxStale;
+  }
+
+  public boolean shouldRevalidate() {
+    return mRevalidate;
+  }
+
+  boolean isFresh(long timeStamp, long now) {
+    return now - timeStamp <= mTtl;
+  }
+
+  boolean isUsable(long timeStamp, long now) {
+    return mMaxStale == UNLIMITED || now - timeStamp - mTtl <= mMaxStale;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof CachePolicy)) {
+      return false;
+    }
+    final CachePolicy other = (CachePolicy) o;
+    return mTtl == other.mTtl && mMaxStale == other.mMaxStale && mRevalidate == other.mRevalidate;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (int) (mTtl ^ (mTtl >>> 32));
+    result = 31 * result + (int) (mMaxStale ^ (mMaxStale >>> 32));
+    return 31 * result + (mRevalidate ? 1 : 0);
+  }
+
+  @Override
+  public String toString() {
+    return "CachePolicy{ttl=" + mTtl + " maxStale=" + mMaxStale
+        + " revalidate=" + mRevalidate + "}";
+  }
+
+  /**
+   * Looks up the policy that applies to a document.
+   */
+  public interface Resolver {
+    CachePolicy getCachePolicy(Uri uri);
+  }
+}
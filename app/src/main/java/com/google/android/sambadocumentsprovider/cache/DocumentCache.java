@@ -18,61 +18,524 @@
 package com.google.android.sambadocumentsprovider.cache;
 
 import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
+import com.google.android.sambadocumentsprovider.BuildConfig;
+import com.google.android.sambadocumentsprovider.base.DocumentPath;
 import com.google.android.sambadocumentsprovider.document.DocumentMetadata;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
 
+/**
+ * LRU cache of {@link DocumentMetadata}, bounded by entry count and by an estimate of the memory
+ * the entries use. A folder's listing is counted against the folder, and documents that are in
+ * the listing of a cached folder aren't counted again. When a folder is evicted its listing goes
+ * with it, together with the cached documents in it. Mounted roots and folders that are
+ * currently observed are pinned and never evicted. Entries are also indexed by path, so that a
+ * folder can be removed or renamed together with everything cached under it.
+ *
+ * If a {@link MetadataStore} is given, folder listings are also saved to disk, and documents
+ * missing in memory are looked up there. Those are served as expired so that they're refreshed.
+ *
+ * Whether a document is fresh, stale or too old to be served is decided by the
+ * {@link CachePolicy} of its share.
+ */
 public class DocumentCache {
 
-  private static final long CACHE_EXPIRATION = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
-  private final Map<Uri, DocumentMetadata> mCache = new ConcurrentHashMap<>();
-  private final Map<Uri, Exception> mExceptionCache = new ConcurrentHashMap<>();
+  private static final String TAG = "DocumentCache";
+
+  private static final int DEFAULT_MAX_ENTRIES = 5000;
+  private static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+  // Rough per-object costs used for estimating the memory held by an entry.
+  private static final int ENTRY_OVERHEAD_BYTES = 256;
+  // Listed children are estimated as whole entries with names of this many chars.
+  private static final int CHILD_NAME_CHARS = 32;
+
+  private final int mMaxEntries;
+  private final long mMaxBytes;
+
+  // Guarded by itself.
+  private final LinkedHashMap<DocumentPath, DocumentMetadata> mCache =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<DocumentPath, Integer> mSizes = new HashMap<>();
+  // Keys of mCache in a tree, so that all documents under a folder can be found together.
+  private final PathTrie<DocumentPath> mIndex = new PathTrie<>();
+  private final Map<DocumentPath, Integer> mPinCounts = new HashMap<>();
+  private final Set<DocumentPath> mPinnedRoots = new HashSet<>();
+  private long mTotalBytes;
+
+  private int mHits;
+  private int mMisses;
+  private int mExpired;
+  private int mEvictions;
+
+  private final NegativeCache mFailures = new NegativeCache();
+
+  private final @Nullable MetadataStore mStore;
+
+  private volatile @Nullable CachePolicy.Resolver mPolicyResolver;
+
+  public DocumentCache() {
+    this(null);
+  }
+
+  public DocumentCache(@Nullable MetadataStore store) {
+    this(store, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+  }
+
+  public DocumentCache(@Nullable MetadataStore store, int maxEntries, long maxBytes) {
+    mStore = store;
+    mMaxEntries = maxEntries;
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Sets where per-share {@link CachePolicy}s come from. {@link CachePolicy#DEFAULT} is used for
+   * everything if there is none.
+   */
+  public void setPolicyResolver(@Nullable CachePolicy.Resolver resolver) {
+    mPolicyResolver = resolver;
+  }
+
+  public CachePolicy getPolicy(Uri uri) {
+    final CachePolicy.Resolver resolver = mPolicyResolver;
+    final CachePolicy policy = (resolver == null) ? null : resolver.getCachePolicy(uri);
+    return (policy == null) ? CachePolicy.DEFAULT : policy;
+  }
+
+  /**
+   * Whether a stale document should be refreshed in the background. Documents restored from disk
+   * are always refreshed, since there's no telling how old they are.
+   */
+  public boolean shouldRevalidate(DocumentMetadata metadata) {
+    return metadata.isRestored() || getPolicy(metadata.getUri()).shouldRevalidate();
+  }
 
   public CacheResult get(Uri uri) {
-    DocumentMetadata metadata = mCache.get(uri);
+    final CachePolicy policy = getPolicy(uri);
+    final long now = System.currentTimeMillis();
+    final DocumentPath path = DocumentPath.fromUri(uri);
+
+    DocumentMetadata metadata;
+    boolean tooOld = false;
+    synchronized (mCache) {
+      metadata = mCache.get(path);
+      if (metadata != null && !metadata.isRestored()
+          && !policy.isUsable(metadata.getTimeStamp(), now)) {
+        // Too old to be served. It's replaced once it's loaded again, and what's on disk is no
+        // newer than this.
+        metadata = null;
+        tooOld = true;
+      }
+
+      if (metadata == null) {
+        ++mMisses;
+      } else if (!policy.isFresh(metadata.getTimeStamp(), now)) {
+        ++mExpired;
+      } else {
+        ++mHits;
+      }
+    }
+
+    if (metadata == null && !tooOld) {
+      metadata = loadFromStore(uri);
+    }
+
     if (metadata == null) {
       return CacheResult.obtain(CacheResult.CACHE_MISS, null);
     }
 
-    if (metadata.getTimeStamp() + CACHE_EXPIRATION < System.currentTimeMillis()) {
+    if (metadata.isRestored() || !policy.isFresh(metadata.getTimeStamp(), now)) {
       return CacheResult.obtain(CacheResult.CACHE_EXPIRED, metadata);
     }
 
     return CacheResult.obtain(CacheResult.CACHE_HIT, metadata);
   }
 
-  public void throwLastExceptionIfAny(Uri uri) throws Exception {
-    if (mExceptionCache.containsKey(uri)) {
-      Exception e = mExceptionCache.get(uri);
-      mExceptionCache.remove(uri);
+  /**
+   * Throws the exception of a recent failure to load the uri, its share or its host if it's too
+   * early to try again.
+   */
+  public void throwIfFailedRecently(Uri uri) throws Exception {
+    final Exception e = mFailures.getFailure(uri);
+    if (e != null) {
       throw e;
     }
   }
 
+  public boolean hasFailedRecently(Uri uri) {
+    return mFailures.getFailure(uri) != null;
+  }
+
   public void put(DocumentMetadata metadata) {
-    mCache.put(metadata.getUri(), metadata);
+    final DocumentPath path = metadata.getPath();
+    mFailures.clear(metadata.getUri());
+    final DocumentPath parentPath = path.getParent();
+    final DocumentMetadata parentMetadata;
+    synchronized (mCache) {
+      parentMetadata = (parentPath == null) ? null : mCache.get(parentPath);
+      if (parentMetadata != null) {
+        parentMetadata.putChild(metadata);
+      }
+
+      addLocked(path, metadata);
+      if (parentMetadata != null) {
+        chargeLocked(parentPath, parentMetadata);
+      }
+
+      trimToSize();
+    }
+  }
+
+  /**
+   * Saves the current listing of the folder to disk, if there is a store.
+   */
+  public void persistChildren(DocumentMetadata folder) {
+    if (mStore == null) {
+      return;
+    }
 
-    final Uri parentUri = DocumentMetadata.buildParentUri(metadata.getUri());
-    final DocumentMetadata parentMetadata = mCache.get(parentUri);
-    if (parentMetadata != null) {
-      parentMetadata.putChild(metadata);
+    // The listing is changed under the cache lock, so take a copy of it under the same lock.
+    final List<DocumentMetadata> children;
+    synchronized (mCache) {
+      final Map<Uri, DocumentMetadata> listing = folder.getChildren();
+      if (listing == null) {
+        return;
+      }
+      children = new ArrayList<>(listing.values());
     }
+    mStore.saveChildren(folder, children);
   }
 
+  /**
+   * Records a failure to load the uri. Requests covered by it fail right away until it's time to
+   * try again.
+   */
   public void put(Uri uri, Exception e) {
-    mExceptionCache.put(uri, e);
+    mFailures.record(uri, e);
+  }
+
+  /**
+   * Forgets recorded failures of the uri, its share and its host, e.g. after new credentials were
+   * entered.
+   */
+  public void clearFailures(Uri uri) {
+    mFailures.clear(uri);
+  }
+
+  /**
+   * Forgets all recorded failures, e.g. when the network changed.
+   */
+  public void clearFailures() {
+    mFailures.clear();
   }
 
   public void remove(Uri uri) {
-    mCache.remove(uri);
-    mExceptionCache.remove(uri);
+    mFailures.remove(uri);
+    if (mStore != null) {
+      mStore.remove(uri);
+    }
+
+    final DocumentPath path = DocumentPath.fromUri(uri);
+    synchronized (mCache) {
+      if (mIndex.remove(path) != null) {
+        dropLocked(path);
+      }
+      detachLocked(path);
+    }
+  }
+
+  /**
+   * Removes the document together with all of its descendants in cache. Descendants are found in
+   * a tree of path segments, so this only looks at the removed documents.
+   *
+   * @return Uris of the documents that were in cache.
+   */
+  public List<Uri> removeSubtree(Uri uri) {
+    mFailures.remove(uri);
+    if (mStore != null) {
+      mStore.remove(uri);
+    }
+
+    final DocumentPath path = DocumentPath.fromUri(uri);
+    final List<Uri> removed = new ArrayList<>();
+    synchronized (mCache) {
+      for (DocumentPath removedPath : mIndex.removeSubtree(path)) {
+        dropLocked(removedPath);
+        removed.add(removedPath.toUri());
+      }
+      detachLocked(path);
+    }
+    return removed;
+  }
+
+  /**
+   * Moves the document and its descendants in cache to newUri, e.g. after a folder was renamed or
+   * moved, and updates their uris. Whatever was cached at newUri before is dropped.
+   *
+   * @return Old uris of the documents that were in cache.
+   */
+  public List<Uri> renameSubtree(Uri uri, Uri newUri) {
+    mFailures.remove(uri);
+    if (mStore != null) {
+      // Saved listings are keyed by uri. The moved folders are saved again when they're listed.
+      mStore.remove(uri);
+      mStore.remove(newUri);
+    }
+
+    final DocumentPath path = DocumentPath.fromUri(uri);
+    final DocumentPath newPath = DocumentPath.fromUri(newUri);
+    final DocumentPath newParentPath = newPath.getParent();
+    final List<Uri> oldUris = new ArrayList<>();
+    synchronized (mCache) {
+      for (DocumentPath replacedPath : mIndex.removeSubtree(newPath)) {
+        dropLocked(replacedPath);
+      }
+
+      final List<DocumentPath> oldPaths = mIndex.removeSubtree(path);
+      detachLocked(path);
+      for (DocumentPath oldPath : oldPaths) {
+        oldUris.add(oldPath.toUri());
+        final DocumentMetadata metadata = mCache.remove(oldPath);
+        final Integer size = mSizes.remove(oldPath);
+        final DocumentPath movedPath = oldPath.move(path, newPath);
+
+        metadata.rename(movedPath);
+        mCache.put(movedPath, metadata);
+        mIndex.put(movedPath, movedPath);
+        if (size != null) {
+          mSizes.put(movedPath, size);
+        }
+      }
+
+      final DocumentMetadata metadata = mCache.get(newPath);
+      final DocumentMetadata parentMetadata =
+          (newParentPath == null) ? null : mCache.get(newParentPath);
+      if (metadata != null && parentMetadata != null) {
+        parentMetadata.putChild(metadata);
+        chargeLocked(newParentPath, parentMetadata);
+        chargeLocked(newPath, metadata);
+      }
+    }
+    return oldUris;
+  }
 
-    final Uri parentUri = DocumentMetadata.buildParentUri(uri);
-    final DocumentMetadata parentMetadata = mCache.get(parentUri);
+  /**
+   * Drops a document that was already taken out of the index.
+   */
+  private void dropLocked(DocumentPath path) {
+    mCache.remove(path);
+    updateSize(path, 0);
+  }
+
+  /**
+   * Removes the document from the children of its parent, if the parent is in cache.
+   */
+  private void detachLocked(DocumentPath path) {
+    final DocumentPath parentPath = path.getParent();
+    final DocumentMetadata parentMetadata = (parentPath == null) ? null : mCache.get(parentPath);
     if (parentMetadata != null && parentMetadata.getChildren() != null) {
-      parentMetadata.getChildren().remove(uri);
+      parentMetadata.getChildren().remove(path.toUri());
+      chargeLocked(parentPath, parentMetadata);
+    }
+  }
+
+  /**
+   * Keeps the document in cache until {@link #unpin(Uri)} is called as many times.
+   */
+  public void pin(Uri uri) {
+    final DocumentPath path = DocumentPath.fromUri(uri);
+    synchronized (mCache) {
+      final Integer count = mPinCounts.get(path);
+      mPinCounts.put(path, count == null ? 1 : count + 1);
+    }
+  }
+
+  public void unpin(Uri uri) {
+    final DocumentPath path = DocumentPath.fromUri(uri);
+    synchronized (mCache) {
+      final Integer count = mPinCounts.get(path);
+      if (count == null) {
+        return;
+      }
+      if (count <= 1) {
+        mPinCounts.remove(path);
+      } else {
+        mPinCounts.put(path, count - 1);
+      }
+      trimToSize();
+    }
+  }
+
+  /**
+   * Replaces the set of roots that are always kept in cache.
+   */
+  public void setPinnedRoots(Collection<Uri> roots) {
+    synchronized (mCache) {
+      mPinnedRoots.clear();
+      for (Uri root : roots) {
+        mPinnedRoots.add(DocumentPath.fromUri(root));
+      }
+      trimToSize();
+    }
+  }
+
+  public int getHitCount() {
+    synchronized (mCache) {
+      return mHits;
+    }
+  }
+
+  public int getMissCount() {
+    synchronized (mCache) {
+      return mMisses;
+    }
+  }
+
+  public int getExpiredCount() {
+    synchronized (mCache) {
+      return mExpired;
+    }
+  }
+
+  public int getEvictionCount() {
+    synchronized (mCache) {
+      return mEvictions;
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (mCache) {
+      return "DocumentCache{entries=" + mCache.size() + " bytes=" + mTotalBytes
+          + " hits=" + mHits + " misses=" + mMisses + " expired=" + mExpired
+          + " evictions=" + mEvictions + "}";
+    }
+  }
+
+  private @Nullable DocumentMetadata loadFromStore(Uri uri) {
+    if (mStore == null) {
+      return null;
+    }
+
+    final DocumentMetadata metadata = mStore.load(uri);
+    if (metadata == null) {
+      return null;
+    }
+
+    final DocumentPath path = metadata.getPath();
+    synchronized (mCache) {
+      final DocumentMetadata existing = mCache.get(path);
+      if (existing != null) {
+        // Someone loaded it from the network in the meantime.
+        return existing;
+      }
+      addLocked(path, metadata);
+      trimToSize();
+    }
+    return metadata;
+  }
+
+  private void addLocked(DocumentPath path, DocumentMetadata metadata) {
+    mCache.put(path, metadata);
+    mIndex.put(path, path);
+    chargeLocked(path, metadata);
+  }
+
+  /**
+   * Updates the estimated size of a cached document. It isn't counted if it's in the listing of
+   * its cached parent, since the parent holds on to it anyway.
+   */
+  private void chargeLocked(DocumentPath path, DocumentMetadata metadata) {
+    final DocumentPath parentPath = path.getParent();
+    final DocumentMetadata parentMetadata = (parentPath == null) ? null : mCache.get(parentPath);
+    final Map<Uri, DocumentMetadata> siblings =
+        (parentMetadata == null) ? null : parentMetadata.getChildren();
+    final boolean listed = siblings != null && siblings.get(metadata.getUri()) == metadata;
+    updateSize(path, estimateSize(metadata, listed));
+  }
+
+  private void updateSize(DocumentPath path, int size) {
+    final Integer oldSize = (size == 0) ? mSizes.remove(path) : mSizes.put(path, size);
+    mTotalBytes += size - (oldSize == null ? 0 : oldSize);
+  }
+
+  private void trimToSize() {
+    while (mCache.size() > mMaxEntries || mTotalBytes > mMaxBytes) {
+      // Evicting a folder touches other entries, so look for the eldest one again every time.
+      Map.Entry<DocumentPath, DocumentMetadata> eldest = null;
+      for (Map.Entry<DocumentPath, DocumentMetadata> entry : mCache.entrySet()) {
+        if (!isPinned(entry.getKey())) {
+          eldest = entry;
+          break;
+        }
+      }
+      if (eldest == null) {
+        break;
+      }
+
+      final DocumentPath path = eldest.getKey();
+      evictLocked(path, mCache.remove(path));
+    }
+
+    if (BuildConfig.DEBUG && (mCache.size() > mMaxEntries || mTotalBytes > mMaxBytes)) {
+      Log.d(TAG, "Only pinned documents are left in cache. " + this);
+    }
+  }
+
+  private boolean isPinned(DocumentPath path) {
+    return mPinCounts.containsKey(path) || mPinnedRoots.contains(path);
+  }
+
+  /**
+   * Evicts a document that was already taken out of {@link #mCache}, and its listing with it.
+   * The listing is dropped even though the document may still be in its parent's listing, so
+   * that nothing under it is held on to.
+   */
+  private void evictLocked(DocumentPath path, DocumentMetadata metadata) {
+    mIndex.remove(path);
+    updateSize(path, 0);
+    ++mEvictions;
+
+    final Map<Uri, DocumentMetadata> children = metadata.getChildren();
+    metadata.clearChildren();
+    if (children == null) {
+      return;
+    }
+
+    for (DocumentMetadata child : children.values()) {
+      final DocumentPath childPath = child.getPath();
+      if (isPinned(childPath)) {
+        // No longer held by its parent, so it's counted on its own now.
+        final DocumentMetadata pinned = mCache.get(childPath);
+        if (pinned != null) {
+          updateSize(childPath, estimateSize(pinned, false));
+        }
+        continue;
+      }
+
+      final DocumentMetadata cached = mCache.remove(childPath);
+      if (cached != null) {
+        evictLocked(childPath, cached);
+      }
+    }
+  }
+
+  private static int estimateSize(DocumentMetadata metadata, boolean listed) {
+    final int entrySize = ENTRY_OVERHEAD_BYTES + 2 * metadata.getUri().toString().length();
+    int size = listed ? 0 : entrySize;
+    final Map<Uri, DocumentMetadata> children = metadata.getChildren();
+    if (children != null) {
+      size += children.size() * (entrySize + 2 * CHILD_NAME_CHARS);
     }
+    return size;
   }
 }
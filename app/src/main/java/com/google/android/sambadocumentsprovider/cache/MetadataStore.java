@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.cache;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import com.google.android.sambadocumentsprovider.base.DirectoryEntry;
+import com.google.android.sambadocumentsprovider.document.DocumentMetadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last known folder listings on disk so that they can be shown right after the process
+ * starts. Reads are synchronous, writes are done in the background in the order they are made.
+ */
+public class MetadataStore {
+
+  private static final String TAG = "MetadataStore";
+
+  private static final String DATABASE_NAME = "metadata.db";
+  private static final int DATABASE_VERSION = 1;
+
+  private static final String TABLE = "documents";
+  private static final String COLUMN_URI = "uri";
+  private static final String COLUMN_PARENT = "parent";
+  private static final String COLUMN_TYPE = "type";
+  private static final String COLUMN_NAME = "name";
+  private static final String COLUMN_COMMENT = "comment";
+  private static final String COLUMN_SIZE = "size";
+  private static final String COLUMN_MTIME = "mtime";
+  private static final String COLUMN_LISTED = "listed";
+
+  private static final String[] PROJECTION = {
+      COLUMN_URI, COLUMN_TYPE, COLUMN_NAME, COLUMN_COMMENT, COLUMN_SIZE, COLUMN_MTIME,
+      COLUMN_LISTED
+  };
+  private static final int INDEX_URI = 0;
+  private static final int INDEX_TYPE = 1;
+  private static final int INDEX_NAME = 2;
+  private static final int INDEX_COMMENT = 3;
+  private static final int INDEX_SIZE = 4;
+  private static final int INDEX_MTIME = 5;
+  private static final int INDEX_LISTED = 6;
+
+  private final DatabaseHelper mHelper;
+  private final Executor mWriteExecutor = Executors.newSingleThreadExecutor();
+
+  public MetadataStore(Context context) {
+    mHelper = new DatabaseHelper(context);
+  }
+
+  /**
+   * @return The saved metadata, with its children if the folder's listing was saved, or
+   * {@code null} if nothing is saved for the uri.
+   */
+  public @Nullable DocumentMetadata load(Uri uri) {
+    try {
+      final SQLiteDatabase db = mHelper.getReadableDatabase();
+
+      final Row row;
+      try (Cursor cursor = db.query(TABLE, PROJECTION, COLUMN_URI + " = ?",
+          new String[] { uri.toString() }, null, null, null)) {
+        if (!cursor.moveToFirst()) {
+          return null;
+        }
+        row = Row.fromCursor(cursor);
+      }
+
+      Map<Uri, DocumentMetadata> children = null;
+      if (row.mListed) {
+        children = new HashMap<>();
+        try (Cursor cursor = db.query(TABLE, PROJECTION, COLUMN_PARENT + " = ?",
+            new String[] { uri.toString() }, null, null, null)) {
+          while (cursor.moveToNext()) {
+            final Row childRow = Row.fromCursor(cursor);
+            final Uri childUri = Uri.parse(childRow.mUri);
+            children.put(childUri, DocumentMetadata.restore(childUri, childRow.toEntry(), null));
+          }
+        }
+      }
+
+      return DocumentMetadata.restore(uri, row.toEntry(), children);
+    } catch (SQLiteException e) {
+      Log.e(TAG, "Failed to load metadata of " + uri, e);
+      return null;
+    }
+  }
+
+  /**
+   * Saves the folder together with its children, replacing what was saved before.
+   *
+   * @param children A copy of the folder's listing that no one else changes.
+   */
+  public void saveChildren(DocumentMetadata folder, Collection<DocumentMetadata> children) {
+    // Copy everything now. The metadata keeps changing on other threads.
+    final ContentValues folderValues = toContentValues(folder);
+    folderValues.put(COLUMN_LISTED, 1);
+    final String folderUri = folder.getUri().toString();
+    final List<ContentValues> childValues = new ArrayList<>(children.size());
+    for (DocumentMetadata child : children) {
+      childValues.add(toContentValues(child));
+    }
+
+    mWriteExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final SQLiteDatabase db = mHelper.getWritableDatabase();
+          db.beginTransaction();
+          try {
+            // Keep whatever is known about the listings of child folders.
+            final Map<String, Integer> listed = new HashMap<>();
+            try (Cursor cursor = db.query(TABLE, new String[] { COLUMN_URI, COLUMN_LISTED },
+                COLUMN_PARENT + " = ? AND " + COLUMN_LISTED + " != 0",
+                new String[] { folderUri }, null, null, null)) {
+              while (cursor.moveToNext()) {
+                listed.put(cursor.getString(0), cursor.getInt(1));
+              }
+            }
+
+            upsert(db, folderValues);
+            db.delete(TABLE, COLUMN_PARENT + " = ?", new String[] { folderUri });
+            for (ContentValues values : childValues) {
+              final Integer childListed = listed.get(values.getAsString(COLUMN_URI));
+              if (childListed != null) {
+                values.put(COLUMN_LISTED, childListed);
+              }
+              upsert(db, values);
+            }
+            db.setTransactionSuccessful();
+          } finally {
+            db.endTransaction();
+          }
+        } catch (SQLiteException e) {
+          Log.e(TAG, "Failed to save children of " + folderUri, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Removes the document and everything saved under it.
+   */
+  public void remove(Uri uri) {
+    final String uriString = uri.toString();
+    final String prefix = uriString + "/";
+    mWriteExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final SQLiteDatabase db = mHelper.getWritableDatabase();
+          // LIKE ignores case, so compare prefixes exactly instead.
+          db.delete(TABLE, COLUMN_URI + " = ? OR substr(" + COLUMN_URI + ", 1, "
+              + prefix.length() + ") = ?", new String[] { uriString, prefix });
+        } catch (SQLiteException e) {
+          Log.e(TAG, "Failed to remove " + uriString, e);
+        }
+      }
+    });
+  }
+
+  private static void upsert(SQLiteDatabase db, ContentValues values) {
+    db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  private static ContentValues toContentValues(DocumentMetadata metadata) {
+    final ContentValues values = new ContentValues();
+    values.put(COLUMN_URI, metadata.getUri().toString());
+    values.put(COLUMN_PARENT, DocumentMetadata.buildParentUri(metadata.getUri()).toString());
+    values.put(COLUMN_TYPE, metadata.getType());
+    values.put(COLUMN_NAME, metadata.getDisplayName());
+    values.put(COLUMN_COMMENT, metadata.getComment());
+    values.put(COLUMN_SIZE, metadata.getSize());
+    values.put(COLUMN_MTIME, metadata.getLastModified());
+    values.put(COLUMN_LISTED, 0);
+    return values;
+  }
+
+  private static class Row {
+    private String mUri;
+    private int mType;
+    private String mName;
+    private String mComment;
+    private Long mSize;
+    private Long mLastModified;
+    private boolean mListed;
+
+    private static Row fromCursor(Cursor cursor) {
+      final Row row = new Row();
+      row.mUri = cursor.getString(INDEX_URI);
+      row.mType = cursor.getInt(INDEX_TYPE);
+      row.mName = cursor.getString(INDEX_NAME);
+      row.mComment = cursor.getString(INDEX_COMMENT);
+      row.mSize = cursor.isNull(INDEX_SIZE) ? null : cursor.getLong(INDEX_SIZE);
+      row.mLastModified = cursor.isNull(INDEX_MTIME) ? null : cursor.getLong(INDEX_MTIME);
+      row.mListed = cursor.getInt(INDEX_LISTED) != 0;
+      return row;
+    }
+
+    @SuppressWarnings("WrongConstant")
+    private DirectoryEntry toEntry() {
+      StructStat stat = null;
+      if (mSize != null && mLastModified != null) {
+        final int mode = (mType == DirectoryEntry.FILE) ? OsConstants.S_IFREG : OsConstants.S_IFDIR;
+        final long mtime = TimeUnit.SECONDS.convert(mLastModified, TimeUnit.MILLISECONDS);
+        stat = new StructStat(0, 0, mode, 0, 0, 0, 0, mSize, mtime, mtime, mtime, 0, 0);
+      }
+      return new DirectoryEntry(mType, mComment, mName, stat);
+    }
+  }
+
+  private static class DatabaseHelper extends SQLiteOpenHelper {
+
+    private DatabaseHelper(Context context) {
+      super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE " + TABLE + " ("
+          + COLUMN_URI + " TEXT PRIMARY KEY NOT NULL, "
+          + COLUMN_PARENT + " TEXT NOT NULL, "
+          + COLUMN_TYPE + " INTEGER NOT NULL, "
+          + COLUMN_NAME + " TEXT, "
+          + COLUMN_COMMENT + " TEXT, "
+          + COLUMN_SIZE + " INTEGER, "
+          + COLUMN_MTIME + " INTEGER, "
+          + COLUMN_LISTED + " INTEGER NOT NULL DEFAULT 0)");
+      db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_PARENT
+          + " ON " + TABLE + " (" + COLUMN_PARENT + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      // It's only a cache.
+      db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+      onCreate(db);
+    }
+  }
+}
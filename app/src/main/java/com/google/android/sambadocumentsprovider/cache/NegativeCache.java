@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.cache;
+
+import android.net.Uri;
+import android.support.annotation.IntDef;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import com.google.android.sambadocumentsprovider.base.AuthFailedException;
+import java.io.FileNotFoundException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recent failures so that requests that are bound to fail again are answered right away
+ * instead of waiting for another connection timeout. Every failure is kept for a while, and the
+ * wait grows exponentially with each consecutive failure.
+ *
+ * Unreachable hosts are tracked per host, authentication failures per share and anything else per
+ * document. A success clears all of the failures on its way.
+ */
+class NegativeCache {
+
+  @IntDef({HOST_UNREACHABLE, AUTH_FAILED, NOT_FOUND, OTHER})
+  @Retention(RetentionPolicy.SOURCE)
+  @interface Kind {}
+  static final int HOST_UNREACHABLE = 0;
+  static final int AUTH_FAILED = 1;
+  static final int NOT_FOUND = 2;
+  static final int OTHER = 3;
+
+  // Indexed by kind.
+  private static final long[] INITIAL_DELAYS_MS = {
+      TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS),
+      TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS),
+      TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS),
+      TimeUnit.MILLISECONDS.convert(2, TimeUnit.SECONDS),
+  };
+  private static final long[] MAX_DELAYS_MS = {
+      TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES),
+      TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES),
+      TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES),
+      TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES),
+  };
+
+  // Delays are randomly spread by this fraction so that retries don't line up.
+  private static final double JITTER = 0.2;
+
+  private static final int MAX_ENTRIES = 1000;
+
+  // Guarded by itself.
+  private final Map<String, Failure> mFailures = new HashMap<>();
+  private final Random mRandom = new Random();
+
+  void record(Uri uri, Exception e) {
+    final @Kind int kind = classify(e);
+    final String key = getKey(uri, kind);
+    if (key == null) {
+      return;
+    }
+
+    final long now = now();
+    synchronized (mFailures) {
+      Failure failure = mFailures.get(key);
+      if (failure == null) {
+        if (mFailures.size() >= MAX_ENTRIES) {
+          trim(now);
+        }
+        failure = new Failure();
+        mFailures.put(key, failure);
+      }
+
+      final long delay = Math.min(
+          INITIAL_DELAYS_MS[kind] << Math.min(failure.mCount, 20), MAX_DELAYS_MS[kind]);
+      final double jitter = 1 + JITTER * (2 * mRandom.nextDouble() - 1);
+      failure.mException = e;
+      failure.mRetryAt = now + (long) (delay * jitter);
+      ++failure.mCount;
+    }
+  }
+
+  /**
+   * @return The exception of a failure that is still backing off and covers the uri, or
+   * {@code null} if the uri may be tried again.
+   */
+  @Nullable Exception getFailure(Uri uri) {
+    final long now = now();
+    synchronized (mFailures) {
+      for (int kind = HOST_UNREACHABLE; kind <= OTHER; ++kind) {
+        final String key = getKey(uri, kind);
+        final Failure failure = (key == null) ? null : mFailures.get(key);
+        if (failure != null && now < failure.mRetryAt) {
+          return failure.mException;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Forgets the failures of the uri, its share and its host.
+   */
+  void clear(Uri uri) {
+    synchronized (mFailures) {
+      for (int kind = HOST_UNREACHABLE; kind <= OTHER; ++kind) {
+        final String key = getKey(uri, kind);
+        if (key != null) {
+          mFailures.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Forgets the failure of the uri itself.
+   */
+  void remove(Uri uri) {
+    synchronized (mFailures) {
+      mFailures.remove(getKey(uri, OTHER));
+    }
+  }
+
+  void clear() {
+    synchronized (mFailures) {
+      mFailures.clear();
+    }
+  }
+
+  /**
+   * @return The current time in milliseconds. Tests override this to control time.
+   */
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  private void trim(long now) {
+    final Iterator<Failure> iterator = mFailures.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().mRetryAt <= now) {
+        iterator.remove();
+      }
+    }
+  }
+
+  static @Kind int classify(Exception e) {
+    if (e instanceof AuthFailedException) {
+      return AUTH_FAILED;
+    }
+    if (e instanceof FileNotFoundException) {
+      return NOT_FOUND;
+    }
+
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ErrnoException) {
+        final int errno = ((ErrnoException) cause).errno;
+        if (errno == OsConstants.EHOSTUNREACH
+            || errno == OsConstants.EHOSTDOWN
+            || errno == OsConstants.ENETUNREACH
+            || errno == OsConstants.ETIMEDOUT
+            || errno == OsConstants.ECONNREFUSED) {
+          return HOST_UNREACHABLE;
+        }
+        if (errno == OsConstants.ENOENT || errno == OsConstants.ENODEV) {
+          return NOT_FOUND;
+        }
+        break;
+      }
+    }
+    return OTHER;
+  }
+
+  /**
+   * @return The key failures of the kind are kept under, or {@code null} if the uri doesn't have
+   * that part.
+   */
+  private static @Nullable String getKey(Uri uri, @Kind int kind) {
+    switch (kind) {
+      case HOST_UNREACHABLE: {
+        final String host = uri.getAuthority();
+        return (host == null || host.isEmpty()) ? null : "//" + host.toLowerCase();
+      }
+      case AUTH_FAILED: {
+        final List<String> segments = uri.getPathSegments();
+        return segments.isEmpty()
+            ? null
+            : "//" + uri.getAuthority().toLowerCase() + "/" + segments.get(0).toLowerCase();
+      }
+      default:
+        // Not found and other failures are per document.
+        return uri.toString();
+    }
+  }
+
+  private static class Failure {
+    private Exception mException;
+    private long mRetryAt;
+    private int mCount;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.cache;
+
+import android.support.annotation.Nullable;
+import com.google.android.sambadocumentsprovider.base.DocumentPath;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Map from paths to values that keeps its keys in a tree, with servers at the top. Everything under
+ * a folder is one subtree, so it can be found or removed without looking at the rest of the map.
+ * Not thread safe.
+ */
+class PathTrie<V> {
+
+  private final Node<V> mRoot = new Node<>(null, null);
+  private int mSize;
+
+  int size() {
+    return mSize;
+  }
+
+  @Nullable V get(DocumentPath path) {
+    final Node<V> node = find(path);
+    return node == null ? null : node.mValue;
+  }
+
+  @Nullable V put(DocumentPath path, V value) {
+    Node<V> node = mRoot;
+    for (DocumentPath segment : toSegments(path)) {
+      Node<V> child = node.mChildren.get(segment);
+      if (child == null) {
+        child = new Node<>(node, segment);
+        node.mChildren.put(segment, child);
+      }
+      node = child;
+    }
+
+    final V oldValue = node.mValue;
+    node.mValue = value;
+    if (oldValue == null) {
+      ++mSize;
+    }
+    return oldValue;
+  }
+
+  @Nullable V remove(DocumentPath path) {
+    final Node<V> node = find(path);
+    if (node == null || node.mValue == null) {
+      return null;
+    }
+
+    final V oldValue = node.mValue;
+    node.mValue = null;
+    --mSize;
+    prune(node);
+    return oldValue;
+  }
+
+  /**
+   * Removes path and everything under it.
+   *
+   * @return The removed values.
+   */
+  List<V> removeSubtree(DocumentPath path) {
+    final List<V> values = new ArrayList<>();
+    final Node<V> node = find(path);
+    if (node == null) {
+      return values;
+    }
+
+    collect(node, values);
+    mSize -= values.size();
+    if (node == mRoot) {
+      mRoot.mChildren.clear();
+      mRoot.mValue = null;
+    } else {
+      node.mParent.mChildren.remove(node.mSegment);
+      prune(node.mParent);
+    }
+    return values;
+  }
+
+  private @Nullable Node<V> find(DocumentPath path) {
+    Node<V> node = mRoot;
+    for (DocumentPath segment : toSegments(path)) {
+      node = node.mChildren.get(segment);
+      if (node == null) {
+        return null;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Drops nodes that neither hold a value nor lead to one, from node up.
+   */
+  private void prune(Node<V> node) {
+    while (node != mRoot && node.mValue == null && node.mChildren.isEmpty()) {
+      node.mParent.mChildren.remove(node.mSegment);
+      node = node.mParent;
+    }
+  }
+
+  private static <V> void collect(Node<V> node, List<V> values) {
+    final ArrayDeque<Node<V>> pending = new ArrayDeque<>();
+    pending.push(node);
+    while (!pending.isEmpty()) {
+      final Node<V> next = pending.pop();
+      if (next.mValue != null) {
+        values.add(next.mValue);
+      }
+      for (Node<V> child : next.mChildren.values()) {
+        pending.push(child);
+      }
+    }
+  }
+
+  /**
+   * @return Ancestors of path from the top down, ending with path itself. The network root is
+   * left out, it's above everything.
+   */
+  private static Iterable<DocumentPath> toSegments(DocumentPath path) {
+    final ArrayDeque<DocumentPath> segments = new ArrayDeque<>();
+    for (DocumentPath segment = path; segment.getParent() != null; segment = segment.getParent()) {
+      segments.push(segment);
+    }
+    return segments;
+  }
+
+  private static class Node<V> {
+    private final @Nullable Node<V> mParent;
+    private final @Nullable DocumentPath mSegment;
+    private final Map<DocumentPath, Node<V>> mChildren = new HashMap<>(4);
+    private @Nullable V mValue;
+
+    private Node(@Nullable Node<V> parent, @Nullable DocumentPath segment) {
+      mParent = parent;
+      mSegment = segment;
+    }
+  }
+}
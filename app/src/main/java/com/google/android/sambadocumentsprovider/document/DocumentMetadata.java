@@ -18,6 +18,7 @@
 package com.google.android.sambadocumentsprovider.document;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.DocumentsContract.Document;
 import android.support.annotation.Nullable;
 import android.system.OsConstants;
@@ -28,6 +29,8 @@ import android.webkit.MimeTypeMap;
 
 import com.google.android.sambadocumentsprovider.R;
 import com.google.android.sambadocumentsprovider.base.DirectoryEntry;
+import com.google.android.sambadocumentsprovider.base.DocumentPath;
+import com.google.android.sambadocumentsprovider.nativefacade.DirectoryEntryBatch;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbDir;
 import java.io.IOException;
@@ -49,9 +52,11 @@ public class DocumentMetadata {
   private static final String TAG = "DocumentMetadata";
   private static final String GENERIC_MIME_TYPE = "application/octet-stream";
   private static final Uri SMB_BASE_URI = Uri.parse("smb://");
+  private static final long UNKNOWN_MTIME = -1;
+  private static final long MTIME_SETTLE_MS = 2000;
 
   private final DirectoryEntry mEntry;
-  private Uri mUri;
+  private DocumentPath mPath;
 
   private final AtomicReference<StructStat> mStat = new AtomicReference<>(null);
   private final AtomicReference<Map<Uri, DocumentMetadata>> mChildren = new AtomicReference<>(null);
@@ -60,15 +65,37 @@ public class DocumentMetadata {
   private final AtomicReference<Exception> mLastStatException = new AtomicReference<>(null);
   private long mTimeStamp;
 
+  // Last write time of this folder, in seconds, when its children were listed. UNKNOWN_MTIME if
+  // the listing can't be revalidated this way.
+  private long mListedMtime = UNKNOWN_MTIME;
+
+  // Last write time returned by the latest stat of this folder, and when a stat first returned it,
+  // in elapsed realtime.
+  private long mSeenMtime = UNKNOWN_MTIME;
+  private long mSeenAt;
+
   public DocumentMetadata(Uri uri, DirectoryEntry entry) {
-    mUri = uri;
+    this(DocumentPath.fromUri(uri), entry);
+  }
+
+  public DocumentMetadata(DocumentPath path, DirectoryEntry entry) {
+    mPath = path;
     mEntry = entry;
+    mStat.set(entry.getStat());
 
     mTimeStamp = System.currentTimeMillis();
   }
 
   public Uri getUri() {
-    return mUri;
+    return mPath.toUri();
+  }
+
+  public DocumentPath getPath() {
+    return mPath;
+  }
+
+  public @DirectoryEntry.Type int getType() {
+    return mEntry.getType();
   }
 
   public boolean isFileShare() {
@@ -190,6 +217,13 @@ public class DocumentMetadata {
     return mTimeStamp;
   }
 
+  /**
+   * Whether this was restored from disk and hasn't been loaded from the server since.
+   */
+  public boolean isRestored() {
+    return mTimeStamp == 0;
+  }
+
   public void throwLastChildUpdateExceptionIfAny() throws Exception {
     final Exception e = mLastChildUpdateException.get();
     if (e != null) {
@@ -203,9 +237,33 @@ public class DocumentMetadata {
     return e != null;
   }
 
+  /**
+   * Changes the uri of this document, and of its loaded children if it's a folder.
+   */
   public void rename(Uri newUri) {
-    mEntry.setName(newUri.getLastPathSegment());
-    mUri = newUri;
+    rename(DocumentPath.fromUri(newUri));
+  }
+
+  /**
+   * Same as {@link #rename(Uri)}.
+   */
+  public void rename(DocumentPath newPath) {
+    final DocumentPath oldPath = mPath;
+    if (newPath == oldPath) {
+      return;
+    }
+    mEntry.setName(newPath.getName());
+    mPath = newPath;
+
+    final Map<Uri, DocumentMetadata> children = mChildren.get();
+    if (children != null) {
+      final Map<Uri, DocumentMetadata> renamed = new HashMap<>(children.size());
+      for (DocumentMetadata child : children.values()) {
+        child.rename(child.mPath.move(oldPath, newPath));
+        renamed.put(child.getUri(), child);
+      }
+      mChildren.set(renamed);
+    }
   }
 
   /**
@@ -216,15 +274,76 @@ public class DocumentMetadata {
     return mChildren.get();
   }
 
+  /**
+   * Makes sure the children of this folder are up to date. The folder is stat'ed first, and if its
+   * last write time hasn't changed since the last listing the children are kept as they are.
+   * Otherwise they're listed again. Folders that were never listed are listed right away.
+   *
+   * @return {@code true} if the children were listed again.
+   */
+  public boolean revalidateChildren(SmbClient client) throws IOException {
+    // Servers and workgroups don't have a last write time.
+    if (mChildren.get() == null || getUri().getPathSegments().isEmpty()) {
+      loadChildren(client);
+      return true;
+    }
+
+    final long mtime;
+    try {
+      mtime = client.stat(getUri().toString()).st_mtime;
+    } catch (Exception e) {
+      Log.i(TAG, "Failed to stat " + mPath + ". Listing it again.", e);
+      loadChildren(client);
+      return true;
+    }
+
+    final long now = SystemClock.elapsedRealtime();
+    if (mtime != mSeenMtime) {
+      mSeenMtime = mtime;
+      mSeenAt = now;
+    }
+
+    if (mtime == mListedMtime) {
+      mTimeStamp = System.currentTimeMillis();
+      return false;
+    }
+
+    // Last write times only have a resolution of a second, so a change made in the same second as
+    // a listing doesn't show up. The stat that first returned this time was taken no earlier than
+    // it on the server's clock, so a listing started a while after that stat is past its second.
+    // Only durations are measured here, so the device's clock doesn't have to agree with the
+    // server's.
+    final boolean settled = now - mSeenAt >= MTIME_SETTLE_MS;
+    listChildren(client);
+    mListedMtime = settled ? mtime : UNKNOWN_MTIME;
+    return true;
+  }
+
+  /**
+   * Lists the children of this folder. The listing can't be revalidated by last write time until
+   * the folder is listed again through {@link #revalidateChildren(SmbClient)}.
+   */
   public void loadChildren(SmbClient client) throws IOException {
-    try (final SmbDir dir = client.openDir(mUri.toString())) {
+    listChildren(client);
+    mListedMtime = UNKNOWN_MTIME;
+  }
+
+  private void listChildren(SmbClient client) throws IOException {
+    final Uri uri = getUri();
+    try (final SmbDir dir = client.openDir(uri.toString())) {
 
+      // Workgroups and servers are listed through RPCs that can't carry stats.
+      final boolean withStats = !uri.getPathSegments().isEmpty();
+
+      final Map<Uri, DocumentMetadata> oldChildren = mChildren.get();
       Map<Uri, DocumentMetadata> children = new HashMap<>();
-      DirectoryEntry entry;
-      while ((entry = dir.readDir()) != null) {
-        Uri childUri = DocumentMetadata.buildChildUri(mUri, entry);
-        if (childUri != null) {
-          children.put(childUri, new DocumentMetadata(childUri, entry));
+      DirectoryEntryBatch batch;
+      while ((batch = dir.readDirBatch(withStats)) != null) {
+        for (DirectoryEntry entry : batch) {
+          final DocumentPath childPath = buildChildPath(mPath, entry);
+          if (childPath != null) {
+            children.put(childPath.toUri(), mergeChild(oldChildren, childPath, entry));
+          }
         }
       }
 
@@ -234,10 +353,39 @@ public class DocumentMetadata {
     } catch (Exception e) {
       Log.e(TAG, "Failed to load children.", e);
       mLastChildUpdateException.set(e);
+      mListedMtime = UNKNOWN_MTIME;
       throw e;
     }
   }
 
+  /**
+   * Reuses the metadata of a child seen in the previous listing so that its stat and children
+   * aren't lost.
+   */
+  private static DocumentMetadata mergeChild(
+      @Nullable Map<Uri, DocumentMetadata> oldChildren, DocumentPath childPath,
+      DirectoryEntry entry) {
+    final DocumentMetadata oldChild =
+        (oldChildren == null) ? null : oldChildren.get(childPath.toUri());
+    if (oldChild == null || oldChild.getType() != entry.getType()) {
+      return new DocumentMetadata(childPath, entry);
+    }
+
+    if (entry.getStat() != null) {
+      oldChild.mStat.set(entry.getStat());
+    }
+    return oldChild;
+  }
+
+  /**
+   * Drops the loaded children, e.g. when this folder is evicted from cache. They're listed again
+   * the next time they're needed.
+   */
+  public void clearChildren() {
+    mChildren.set(null);
+    mListedMtime = UNKNOWN_MTIME;
+  }
+
   public void putChild(DocumentMetadata child) {
     Map<Uri, DocumentMetadata> children = mChildren.get();
     if (children != null) {
@@ -247,7 +395,7 @@ public class DocumentMetadata {
 
   void loadStat(SmbClient client) throws IOException {
     try {
-      mStat.set(client.stat(mUri.toString()));
+      mStat.set(client.stat(getUri().toString()));
 
       mTimeStamp = System.currentTimeMillis();
     } catch (Exception e) {
@@ -258,6 +406,12 @@ public class DocumentMetadata {
   }
 
   public static Uri buildChildUri(Uri parentUri, DirectoryEntry entry) {
+    final DocumentPath childPath = buildChildPath(DocumentPath.fromUri(parentUri), entry);
+    return (childPath == null) ? null : childPath.toUri();
+  }
+
+  public static @Nullable DocumentPath buildChildPath(
+      DocumentPath parentPath, DirectoryEntry entry) {
     switch (entry.getType()) {
       // TODO: Support LINK type?
       case DirectoryEntry.LINK:
@@ -270,11 +424,11 @@ public class DocumentMetadata {
         return null;
       case DirectoryEntry.WORKGROUP:
       case DirectoryEntry.SERVER:
-        return SMB_BASE_URI.buildUpon().authority(entry.getName()).build();
+        return DocumentPath.fromUri(SMB_BASE_URI).getChild(entry.getName());
       case DirectoryEntry.FILE_SHARE:
       case DirectoryEntry.DIR:
       case DirectoryEntry.FILE:
-        return buildChildUri(parentUri, entry.getName());
+        return buildChildPath(parentPath, entry.getName());
     }
 
     Log.w(TAG, "Unknown type: " + entry.getType()
@@ -284,26 +438,22 @@ public class DocumentMetadata {
   }
 
   public static Uri buildChildUri(Uri parentUri, String displayName) {
+    final DocumentPath childPath = buildChildPath(DocumentPath.fromUri(parentUri), displayName);
+    return (childPath == null) ? null : childPath.toUri();
+  }
+
+  public static @Nullable DocumentPath buildChildPath(DocumentPath parentPath, String displayName) {
     if (".".equals(displayName) || "..".equals(displayName)) {
       return null;
     } else {
-      return parentUri.buildUpon().appendPath(displayName).build();
+      return parentPath.getChild(displayName);
     }
   }
 
   public static Uri buildParentUri(Uri childUri) {
-    final List<String> segments = childUri.getPathSegments();
-    if (segments.isEmpty()) {
-      // This is possibly a server or a workgroup. We don't know its exact parent, so just return
-      // "smb://".
-      return SMB_BASE_URI;
-    }
-
-    Uri.Builder builder = SMB_BASE_URI.buildUpon().authority(childUri.getAuthority());
-    for (int i = 0; i < segments.size() - 1; ++i) {
-      builder.appendPath(segments.get(i));
-    }
-    return builder.build();
+    final DocumentPath parentPath = DocumentPath.fromUri(childUri).getParent();
+    // The network root is its own parent.
+    return (parentPath == null) ? SMB_BASE_URI : parentPath.toUri();
   }
 
   public static boolean isServerUri(Uri uri) {
@@ -331,6 +481,18 @@ public class DocumentMetadata {
       return metadata;
     }
 
+  /**
+   * Recreates metadata saved earlier. It's considered outdated right away so that it's refreshed
+   * when it's used.
+   */
+  public static DocumentMetadata restore(
+      Uri uri, DirectoryEntry entry, @Nullable Map<Uri, DocumentMetadata> children) {
+    final DocumentMetadata metadata = new DocumentMetadata(uri, entry);
+    metadata.mChildren.set(children);
+    metadata.mTimeStamp = 0;
+    return metadata;
+  }
+
   public static DocumentMetadata createShare(String host, String share) {
     final Uri uri = SMB_BASE_URI.buildUpon().authority(host).encodedPath(share).build();
     return createShare(uri);
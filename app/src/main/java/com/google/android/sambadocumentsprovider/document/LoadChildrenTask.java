@@ -32,6 +32,8 @@ public class LoadChildrenTask extends BiResultTask<Void, Void, Map<Uri, Document
   private final SmbClient mClient;
   private final OnTaskFinishedCallback<DocumentMetadata> mCallback;
 
+  private volatile boolean mChanged;
+
   public LoadChildrenTask(DocumentMetadata metadata, SmbClient client,
       DocumentCache cache, OnTaskFinishedCallback<DocumentMetadata> callback) {
     mMetadata = metadata;
@@ -42,15 +44,21 @@ public class LoadChildrenTask extends BiResultTask<Void, Void, Map<Uri, Document
 
   @Override
   public Map<Uri, DocumentMetadata> run(Void... args) throws IOException {
-    mMetadata.loadChildren(mClient);
+    mChanged = mMetadata.revalidateChildren(mClient);
 
     return mMetadata.getChildren();
   }
 
   private void onFinish(Map<Uri, DocumentMetadata> children) {
+    if (!mChanged) {
+      // Nothing to update, the folder hasn't changed since it was last listed.
+      return;
+    }
+
     for (DocumentMetadata metadata : children.values()) {
       mCache.put(metadata);
     }
+    mCache.persistChildren(mMetadata);
   }
 
   @Override
@@ -19,46 +19,151 @@ package com.google.android.sambadocumentsprovider.document;
 
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.system.StructStat;
 import android.util.Log;
 import com.google.android.sambadocumentsprovider.base.OnTaskFinishedCallback;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
+/**
+ * Loads stats of documents. Stats are loaded by the task's own thread and, if an executor is
+ * given, by a few helpers running on it at the same time. Progress is published every
+ * {@link #BATCH_SIZE} stats or {@link #BATCH_INTERVAL_MS}, whichever comes first.
+ */
 public class LoadStatTask extends AsyncTask<Void, Void, Map<Uri, StructStat>> {
 
   private static final String TAG = "LoadStatTask";
 
+  private static final int HELPER_COUNT = 3;
+  private static final int BATCH_SIZE = 100;
+  private static final long BATCH_INTERVAL_MS = 500;
+
+  public interface OnBatchLoadedCallback {
+    /**
+     * Called on the main thread when another batch of stats is loaded.
+     */
+    void onBatchLoaded();
+  }
+
   private final Map<Uri, DocumentMetadata> mMetadataMap;
   private final SmbClient mClient;
+  private final @Nullable Executor mHelperExecutor;
+  private final @Nullable OnBatchLoadedCallback mBatchCallback;
   private final OnTaskFinishedCallback<Map<Uri, DocumentMetadata>> mCallback;
 
+  private final ConcurrentLinkedQueue<DocumentMetadata> mPending = new ConcurrentLinkedQueue<>();
+  private final Object mLock = new Object();
+  private int mActiveWorkers;
+  private int mUnpublished;
+  private long mLastPublishTime;
+
+  public LoadStatTask(
+      Map<Uri, DocumentMetadata> metadataMap,
+      SmbClient client,
+      OnTaskFinishedCallback<Map<Uri, DocumentMetadata>> callback) {
+    this(metadataMap, client, null, null, callback);
+  }
+
   public LoadStatTask(
       Map<Uri, DocumentMetadata> metadataMap,
       SmbClient client,
+      @Nullable Executor helperExecutor,
+      @Nullable OnBatchLoadedCallback batchCallback,
       OnTaskFinishedCallback<Map<Uri, DocumentMetadata>> callback) {
     mMetadataMap = metadataMap;
     mClient = client;
+    mHelperExecutor = helperExecutor;
+    mBatchCallback = batchCallback;
     mCallback = callback;
   }
 
   @Override
   public Map<Uri, StructStat> doInBackground(Void... args) {
-    Map<Uri, StructStat> stats = new HashMap<>(mMetadataMap.size());
-    for (DocumentMetadata metadata : mMetadataMap.values()) {
-      try {
-        metadata.loadStat(mClient);
-        if (isCancelled()) {
-          return stats;
+    mPending.addAll(mMetadataMap.values());
+    mLastPublishTime = SystemClock.uptimeMillis();
+
+    if (mHelperExecutor != null) {
+      final int helpers = Math.min(HELPER_COUNT, mPending.size() - 1);
+      for (int i = 0; i < helpers; ++i) {
+        mHelperExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            loadPendingStats();
+          }
+        });
+      }
+    }
+
+    loadPendingStats();
+
+    // Helpers that have not started yet will find nothing to do, so only wait for the ones that
+    // are still loading.
+    synchronized (mLock) {
+      while (mActiveWorkers > 0) {
+        try {
+          mLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
         }
-      } catch(Exception e) {
-        // Failed to load a stat for a child... Just eat this exception, the only consequence it may
-        // have is constantly retrying to fetch the stat.
-        Log.e(TAG, "Failed to load stat for " + metadata.getUri());
       }
     }
-    return stats;
+
+    return new HashMap<>(0);
+  }
+
+  private void loadPendingStats() {
+    synchronized (mLock) {
+      ++mActiveWorkers;
+    }
+
+    try {
+      DocumentMetadata metadata;
+      while (!isCancelled() && (metadata = mPending.poll()) != null) {
+        try {
+          metadata.loadStat(mClient);
+        } catch(Exception e) {
+          // Failed to load a stat for a child... Just eat this exception, the only consequence it
+          // may have is constantly retrying to fetch the stat.
+          Log.e(TAG, "Failed to load stat for " + metadata.getUri());
+        }
+        onStatLoaded();
+      }
+    } finally {
+      synchronized (mLock) {
+        --mActiveWorkers;
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  private void onStatLoaded() {
+    synchronized (mLock) {
+      ++mUnpublished;
+      final long now = SystemClock.uptimeMillis();
+      if (mUnpublished < BATCH_SIZE && now - mLastPublishTime < BATCH_INTERVAL_MS) {
+        return;
+      }
+      mUnpublished = 0;
+      mLastPublishTime = now;
+    }
+
+    if (!mPending.isEmpty()) {
+      // The last batch is reported by onPostExecute().
+      publishProgress();
+    }
+  }
+
+  @Override
+  public void onProgressUpdate(Void... values) {
+    if (mBatchCallback != null && !isCancelled()) {
+      mBatchCallback.onBatchLoaded();
+    }
   }
 
   @Override
@@ -45,6 +45,7 @@ import android.view.View.OnKeyListener;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 import com.google.android.sambadocumentsprovider.R;
@@ -54,6 +55,7 @@ import com.google.android.sambadocumentsprovider.TaskManager;
 import com.google.android.sambadocumentsprovider.base.AuthFailedException;
 import com.google.android.sambadocumentsprovider.base.OnTaskFinishedCallback;
 import com.google.android.sambadocumentsprovider.browsing.NetworkBrowser;
+import com.google.android.sambadocumentsprovider.cache.CachePolicy;
 import com.google.android.sambadocumentsprovider.cache.DocumentCache;
 import com.google.android.sambadocumentsprovider.document.DocumentMetadata;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
@@ -61,6 +63,7 @@ import com.google.android.sambadocumentsprovider.provider.SambaDocumentsProvider
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class MountServerActivity extends AppCompatActivity {
 
@@ -74,6 +77,14 @@ public class MountServerActivity extends AppCompatActivity {
   private static final String PASSWORD_KEY = "password";
   private static final String AUTH_LAUNCH_KEY = "authLaunch";
 
+  // In the order of R.array.cache_policies.
+  private static final CachePolicy[] CACHE_POLICIES = {
+      CachePolicy.DEFAULT,
+      new CachePolicy(0, 0, true),
+      new CachePolicy(TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS), CachePolicy.UNLIMITED,
+          false),
+  };
+
 
   private final OnClickListener mPasswordStateChangeListener = new OnClickListener() {
     @Override
@@ -133,6 +144,7 @@ public class MountServerActivity extends AppCompatActivity {
   private EditText mDomainEditText;
   private EditText mUsernameEditText;
   private EditText mPasswordEditText;
+  private Spinner mCachePolicySpinner;
 
   private ConnectivityManager mConnectivityManager;
 
@@ -159,6 +171,8 @@ public class MountServerActivity extends AppCompatActivity {
     mPasswordEditText = (EditText) findViewById(R.id.password);
     mPasswordEditText.setOnKeyListener(mMountKeyListener);
 
+    mCachePolicySpinner = (Spinner) findViewById(R.id.cache_policy);
+
     final Button mMountShareButton = (Button) findViewById(R.id.mount);
     mMountShareButton.setOnClickListener(mMountListener);
 
@@ -278,6 +292,7 @@ public class MountServerActivity extends AppCompatActivity {
     final String domain = mDomainEditText.getText().toString();
     final String username = mUsernameEditText.getText().toString();
     final String password = mPasswordEditText.getText().toString();
+    final CachePolicy policy = CACHE_POLICIES[mCachePolicySpinner.getSelectedItemPosition()];
 
     final DocumentMetadata metadata = DocumentMetadata.createShare(host, share);
 
@@ -312,7 +327,7 @@ public class MountServerActivity extends AppCompatActivity {
       }
     };
     final MountServerTask task = new MountServerTask(
-        metadata, domain, username, password, mClient, mCache, mShareManager, callback);
+        metadata, domain, username, password, policy, mClient, mCache, mShareManager, callback);
     mTaskManager.runTask(metadata.getUri(), task);
   }
 
@@ -23,6 +23,7 @@ import com.google.android.sambadocumentsprovider.ShareManager;
 import com.google.android.sambadocumentsprovider.ShareManager.ShareMountChecker;
 import com.google.android.sambadocumentsprovider.base.BiResultTask;
 import com.google.android.sambadocumentsprovider.base.OnTaskFinishedCallback;
+import com.google.android.sambadocumentsprovider.cache.CachePolicy;
 import com.google.android.sambadocumentsprovider.cache.DocumentCache;
 import com.google.android.sambadocumentsprovider.document.DocumentMetadata;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
@@ -37,6 +38,7 @@ class MountServerTask extends BiResultTask<Void, Void, Void> {
   private final String mDomain;
   private final String mUsername;
   private final String mPassword;
+  private final CachePolicy mCachePolicy;
   private final SmbClient mClient;
   private final DocumentCache mCache;
   private final ShareManager mShareManager;
@@ -54,6 +56,7 @@ class MountServerTask extends BiResultTask<Void, Void, Void> {
       String domain,
       String username,
       String password,
+      CachePolicy cachePolicy,
       SmbClient client,
       DocumentCache cache,
       ShareManager shareManager,
@@ -62,6 +65,7 @@ class MountServerTask extends BiResultTask<Void, Void, Void> {
     mDomain = domain;
     mUsername = username;
     mPassword = password;
+    mCachePolicy = cachePolicy;
     mClient = client;
     mCache = cache;
     mShareManager = shareManager;
@@ -70,8 +74,12 @@ class MountServerTask extends BiResultTask<Void, Void, Void> {
 
   @Override
   public Void run(Void... args) throws IOException {
-    mShareManager.addServer(
-        mMetadata.getUri().toString(), mDomain, mUsername, mPassword, mChecker, true);
+    final String uri = mMetadata.getUri().toString();
+    mShareManager.addServer(uri, mDomain, mUsername, mPassword, mChecker, true);
+    // A share that was mounted before may still have its old policy.
+    if (!mCachePolicy.equals(mShareManager.getCachePolicy(uri))) {
+      mShareManager.setCachePolicy(uri, mCachePolicy);
+    }
     return null;
   }
 
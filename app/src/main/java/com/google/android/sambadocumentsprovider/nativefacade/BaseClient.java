@@ -26,15 +26,10 @@ abstract class BaseClient {
   BaseHandler mHandler;
 
   void enqueue(Message msg) {
-    try {
-      synchronized (msg.obj) {
-        mHandler.sendMessage(msg);
-        msg.obj.wait();
-      }
-    } catch(InterruptedException e) {
-      // It should never happen.
-      throw new RuntimeException("Unexpected interruption.", e);
-    }
+    final MessageValues<?> messageValues = (MessageValues<?>) msg.obj;
+    messageValues.prepare();
+    mHandler.sendMessage(msg);
+    messageValues.await();
   }
 
   abstract static class BaseHandler extends Handler {
@@ -47,9 +42,11 @@ abstract class BaseClient {
 
     @Override
     public void handleMessage(Message msg) {
-      synchronized (msg.obj) {
+      final MessageValues<?> messageValues = (MessageValues<?>) msg.obj;
+      try {
         processMessage(msg);
-        msg.obj.notify();
+      } finally {
+        messageValues.complete();
       }
     }
   }
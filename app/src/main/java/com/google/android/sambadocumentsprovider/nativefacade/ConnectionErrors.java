@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.nativefacade;
+
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+/**
+ * Tells errors caused by a broken connection apart from errors reported by the server, and helps
+ * reopening files after them.
+ */
+final class ConnectionErrors {
+
+  private ConnectionErrors() {}
+
+  static boolean isConnectionError(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ErrnoException) {
+        return isConnectionError(((ErrnoException) cause).errno);
+      }
+    }
+    return false;
+  }
+
+  static boolean isConnectionError(int errno) {
+    return errno == OsConstants.ECONNRESET
+        || errno == OsConstants.ECONNABORTED
+        || errno == OsConstants.ENOTCONN
+        || errno == OsConstants.EPIPE
+        || errno == OsConstants.ETIMEDOUT
+        || errno == OsConstants.EHOSTUNREACH
+        || errno == OsConstants.ENETUNREACH
+        || errno == OsConstants.ENETDOWN;
+  }
+
+  /**
+   * @return A mode that opens the file again without truncating it.
+   */
+  static String getReopenMode(String mode) {
+    if (mode.startsWith("r")) {
+      return mode.startsWith("rw") ? "rw" : "r";
+    }
+    return mode.startsWith("wa") ? "wa" : "wn";
+  }
+}
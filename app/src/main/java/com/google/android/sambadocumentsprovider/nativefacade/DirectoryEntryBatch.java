@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.nativefacade;
+
+import android.system.StructStat;
+
+import com.google.android.sambadocumentsprovider.base.DirectoryEntry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A chunk of directory entries packed by native code. Entries are only decoded while iterating.
+ *
+ * Each entry is laid out in native byte order as:
+ * <pre>
+ *   int32 type
+ *   int32 flags
+ *   [int32 mode, int64 size, int64 atime, int64 mtime, int64 ctime]  if flags has HAS_STAT
+ *   uint16 name length, name in UTF-8
+ *   uint16 comment length, comment in UTF-8
+ * </pre>
+ */
+public class DirectoryEntryBatch implements Iterable<DirectoryEntry> {
+
+  // Keep in sync with JniHelper.cc.
+  private static final int HAS_STAT = 1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final byte[] mData;
+
+  DirectoryEntryBatch(byte[] data) {
+    mData = data;
+  }
+
+  @Override
+  public Iterator<DirectoryEntry> iterator() {
+    final ByteBuffer buffer = ByteBuffer.wrap(mData).order(ByteOrder.nativeOrder());
+    return new Iterator<DirectoryEntry>() {
+      @Override
+      public boolean hasNext() {
+        return buffer.hasRemaining();
+      }
+
+      @Override
+      public DirectoryEntry next() {
+        if (!buffer.hasRemaining()) {
+          throw new NoSuchElementException();
+        }
+        return decode(buffer);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static DirectoryEntry decode(ByteBuffer buffer) {
+    @DirectoryEntry.Type final int type = buffer.getInt();
+    final int flags = buffer.getInt();
+
+    StructStat stat = null;
+    if ((flags & HAS_STAT) != 0) {
+      final int mode = buffer.getInt();
+      final long size = buffer.getLong();
+      final long atime = buffer.getLong();
+      final long mtime = buffer.getLong();
+      final long ctime = buffer.getLong();
+      stat = new StructStat(0, 0, mode, 0, 0, 0, 0, size, atime, mtime, ctime, 0, 0);
+    }
+
+    final String name = getString(buffer);
+    final String comment = getString(buffer);
+    return new DirectoryEntry(type, comment, name, stat);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    final int length = buffer.getShort() & 0xffff;
+    final String str = new String(buffer.array(), buffer.position(), length, UTF_8);
+    buffer.position(buffer.position() + length);
+    return str;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.nativefacade;
+
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+import com.google.android.sambadocumentsprovider.BuildConfig;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directories for changes made by other clients. Every watched directory has its own
+ * thread and Samba context, because waiting for changes blocks the connection.
+ *
+ * Directories are watched for as long as {@link #watch(String)} calls outnumber
+ * {@link #unwatch(String)} calls. An unwatched directory's thread only stops once its pending
+ * request returns, and counts against {@link #MAX_WATCHES} until then. If libsmbclient is built
+ * without change notifications, nothing is watched and cached listings are only revalidated when
+ * they expire.
+ */
+public class DirectoryWatcher {
+
+  private static final String TAG = "DirectoryWatcher";
+
+  // Keep in sync with SMBC_NOTIFY_CHANGE_* in libsmbclient.h.
+  static final int NOTIFY_CHANGE_FILE_NAME = 0x001;
+  static final int NOTIFY_CHANGE_DIR_NAME = 0x002;
+  static final int NOTIFY_CHANGE_SIZE = 0x008;
+  static final int NOTIFY_CHANGE_LAST_WRITE = 0x010;
+
+  // Keep in sync with SMBC_NOTIFY_ACTION_* in libsmbclient.h.
+  public static final int ACTION_ADDED = 1;
+  public static final int ACTION_REMOVED = 2;
+  public static final int ACTION_MODIFIED = 3;
+  public static final int ACTION_OLD_NAME = 4;
+  public static final int ACTION_NEW_NAME = 5;
+
+  private static final int FILTER = NOTIFY_CHANGE_FILE_NAME | NOTIFY_CHANGE_DIR_NAME
+      | NOTIFY_CHANGE_SIZE | NOTIFY_CHANGE_LAST_WRITE;
+
+  // Every timeout re-sends the request to the server, so don't make it short. An unwatched
+  // directory is only let go after this long.
+  private static final int TIMEOUT_MS = (int) TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+  private static final long RETRY_DELAY_MS = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+  // Each watch holds a connection and a thread.
+  private static final int MAX_WATCHES = 8;
+
+  private final NativeCredentialCache mCredentialCache;
+  private final Listener mListener;
+
+  // Guarded by itself.
+  private final Map<String, Watch> mWatches = new HashMap<>();
+  // Threads that haven't stopped yet, including those of unwatched directories. Guarded by
+  // mWatches.
+  private int mThreadCount;
+
+  private volatile boolean mUnsupported;
+
+  DirectoryWatcher(NativeCredentialCache credentialCache, Listener listener) {
+    mCredentialCache = credentialCache;
+    mListener = listener;
+    mUnsupported = !NativeSambaFacade.isNotifySupported();
+  }
+
+  /**
+   * Starts watching the directory, or adds one more reference to an existing watch.
+   *
+   * @return {@code false} if there are too many watched directories already or changes can't be
+   *         watched at all. In that case {@link #unwatch(String)} must not be called for this call.
+   */
+  public boolean watch(String uri) {
+    if (mUnsupported) {
+      return false;
+    }
+    synchronized (mWatches) {
+      Watch watch = mWatches.get(uri);
+      if (watch == null) {
+        if (mThreadCount >= MAX_WATCHES) {
+          if (BuildConfig.DEBUG) Log.d(TAG, "Too many watched directories to watch " + uri);
+          return false;
+        }
+
+        watch = new Watch(uri);
+        mWatches.put(uri, watch);
+        ++mThreadCount;
+        watch.start();
+      }
+      ++watch.mRefCount;
+      return true;
+    }
+  }
+
+  public void unwatch(String uri) {
+    synchronized (mWatches) {
+      final Watch watch = mWatches.get(uri);
+      if (watch == null) {
+        return;
+      }
+      if (--watch.mRefCount == 0) {
+        mWatches.remove(uri);
+        watch.interrupt();
+      }
+    }
+  }
+
+  private boolean isWatched(Watch watch) {
+    synchronized (mWatches) {
+      return mWatches.get(watch.mUri) == watch;
+    }
+  }
+
+  private static boolean isUnsupported(IOException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ErrnoException) {
+        return ((ErrnoException) cause).errno == OsConstants.ENOSYS;
+      }
+    }
+    return false;
+  }
+
+  private class Watch extends Thread implements SambaDir.NotifyListener {
+
+    private final String mUri;
+    private int mRefCount;
+
+    private Watch(String uri) {
+      super("DirectoryWatcher");
+      mUri = uri;
+    }
+
+    @Override
+    public void run() {
+      final NativeSambaFacade client = new NativeSambaFacade(mCredentialCache);
+      try {
+        while (isWatched(this)) {
+          client.reset();
+          try (final SambaDir dir = client.openDir(mUri)) {
+            if (BuildConfig.DEBUG) Log.d(TAG, "Watching " + mUri);
+            dir.watch(FILTER, TIMEOUT_MS, this);
+          } catch (IOException e) {
+            if (isUnsupported(e)) {
+              Log.i(TAG, "libsmbclient can't watch changes. Relying on cache expiry instead.");
+              mUnsupported = true;
+              break;
+            }
+            Log.i(TAG, "Failed to watch " + mUri, e);
+            try {
+              Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException ignored) {
+              // Unwatched in the meantime.
+            }
+          }
+        }
+      } finally {
+        client.destroy();
+        synchronized (mWatches) {
+          --mThreadCount;
+        }
+        if (BuildConfig.DEBUG) Log.d(TAG, "Stopped watching " + mUri);
+      }
+    }
+
+    @Override
+    public boolean onNotify(int action, @Nullable String name) {
+      if (!isWatched(this)) {
+        return false;
+      }
+      if (name != null) {
+        mListener.onChanged(mUri, action, name);
+      }
+      return true;
+    }
+  }
+
+  public interface Listener {
+    /**
+     * Called on a watcher thread when something changes in a watched directory.
+     *
+     * @param uri The watched directory.
+     * @param action One of the ACTION_* constants.
+     * @param name The name of the changed entry, relative to the directory.
+     */
+    void onChanged(String uri, int action, String name);
+  }
+}
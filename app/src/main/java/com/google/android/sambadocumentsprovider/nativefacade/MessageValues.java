@@ -20,12 +20,16 @@ package com.google.android.sambadocumentsprovider.nativefacade;
 import android.support.v4.util.Pools.Pool;
 import android.support.v4.util.Pools.SynchronizedPool;
 import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A class used for pass values between two sides of {@link SambaMessageLooper}.
  *
  * If it were C/C++, this would be a union type.
  *
+ * It also works as the completion slot of a request: the caller parks in {@link #await()} until
+ * the handler thread calls {@link #complete()}.
+ *
  * @param <T> A convenient parameterized type to avoid casting everywhere.
  */
 class MessageValues<T> implements AutoCloseable {
@@ -38,6 +42,9 @@ class MessageValues<T> implements AutoCloseable {
   private volatile IOException mException;
   private volatile RuntimeException mRuntimeException;
 
+  private volatile Thread mWaiter;
+  private volatile boolean mDone;
+
   private MessageValues() {}
 
   void checkException() throws IOException {
@@ -84,6 +91,43 @@ class MessageValues<T> implements AutoCloseable {
     mRuntimeException = exception;
   }
 
+  /**
+   * Registers the calling thread as the one to wake up upon completion. Must be called before the
+   * request is handed to the handler thread.
+   */
+  void prepare() {
+    mDone = false;
+    mWaiter = Thread.currentThread();
+  }
+
+  void complete() {
+    // The waiter may recycle this object as soon as it sees mDone, so read mWaiter first.
+    final Thread waiter = mWaiter;
+    mDone = true;
+    LockSupport.unpark(waiter);
+  }
+
+  boolean isDone() {
+    return mDone;
+  }
+
+  /**
+   * Blocks until {@link #complete()} is called. Interruption can't abort the wait because the
+   * handler thread still owns this object until then, so it is only re-asserted afterwards.
+   */
+  void await() {
+    boolean interrupted = false;
+    while (!mDone) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   @SuppressWarnings("unchecked")
   static <T> MessageValues<T> obtain() {
     MessageValues<?> response = POOL.acquire();
@@ -100,6 +144,8 @@ class MessageValues<T> implements AutoCloseable {
     mLong = 0L;
     mException = null;
     mRuntimeException = null;
+    mWaiter = null;
+    mDone = false;
     POOL.release(this);
   }
 }
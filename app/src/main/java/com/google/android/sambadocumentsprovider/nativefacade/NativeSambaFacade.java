@@ -36,6 +36,9 @@ class NativeSambaFacade implements SmbClient {
 
   private final long mCredentialCacheHandler;
   private long mNativeHandler;
+  // Bumped whenever the native context goes away. A new context may get the address of the old
+  // one, so the handler alone doesn't tell whether handles opened earlier are still valid.
+  private int mGeneration;
 
   static {
     System.loadLibrary("samba_client");
@@ -54,11 +57,23 @@ class NativeSambaFacade implements SmbClient {
     if (isInitialized()) {
       nativeDestroy(mNativeHandler);
     }
+    ++mGeneration;
     mNativeHandler = nativeInit(BuildConfig.DEBUG, mCredentialCacheHandler);
   }
 
+  /**
+   * Releases the native Samba context. The facade can be used again after {@link #reset()}.
+   */
+  void destroy() {
+    if (isInitialized()) {
+      nativeDestroy(mNativeHandler);
+      mNativeHandler = 0;
+      ++mGeneration;
+    }
+  }
+
   @Override
-  public SmbDir openDir(String uri) throws IOException {
+  public SambaDir openDir(String uri) throws IOException {
     try {
       checkNativeHandler();
       return new SambaDir(mNativeHandler, openDir(mNativeHandler, uri));
@@ -107,6 +122,16 @@ class NativeSambaFacade implements SmbClient {
     }
   }
 
+  @Override
+  public long copy(String uri, String newUri, long offset, long count) throws IOException {
+    try {
+      checkNativeHandler();
+      return copy(mNativeHandler, uri, newUri, offset, count);
+    } catch(ErrnoException e) {
+      throw new IOException("Failed to copy " + uri + " to " + newUri, e);
+    }
+  }
+
   @Override
   public void unlink(String uri) throws IOException {
     try {
@@ -131,18 +156,43 @@ class NativeSambaFacade implements SmbClient {
   public SambaFile openFile(String uri, String mode) throws IOException {
     try {
       checkNativeHandler();
-      return new SambaFile(mNativeHandler, openFile(mNativeHandler, uri, mode));
+      final int fd = openFile(mNativeHandler, uri, mode);
+      return new SambaFile(this, uri, mode, mNativeHandler, mGeneration, fd);
     } catch(ErrnoException e) {
       throw new IOException("Failed to open " + uri, e);
     }
   }
 
+  long getNativeHandler() {
+    return mNativeHandler;
+  }
+
+  /**
+   * @return A number that changes every time the native context is destroyed or rebuilt.
+   */
+  int getGeneration() {
+    return mGeneration;
+  }
+
+  /**
+   * Opens the file in the current native context and returns its native handle.
+   */
+  int openFileHandle(String uri, String mode) throws ErrnoException {
+    checkNativeHandler();
+    return openFile(mNativeHandler, uri, mode);
+  }
+
   private void checkNativeHandler() {
     if (!isInitialized()) {
       throw new IllegalStateException("Samba client is not initialized.");
     }
   }
 
+  /**
+   * @return Whether libsmbclient was built with change notifications.
+   */
+  static native boolean isNotifySupported();
+
   private native long nativeInit(boolean debug, long cacheHandler);
 
   private native void nativeDestroy(long handler);
@@ -159,6 +209,9 @@ class NativeSambaFacade implements SmbClient {
 
   private native void rename(long handler, String uri, String newUri) throws ErrnoException;
 
+  private native long copy(long handler, String uri, String newUri, long offset, long count)
+      throws ErrnoException;
+
   private native void unlink(long handler, String uri) throws ErrnoException;
 
   private native int openFile(long handler, String uri, String mode) throws ErrnoException;
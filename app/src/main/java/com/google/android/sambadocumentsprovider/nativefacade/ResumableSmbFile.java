@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.nativefacade;
+
+import android.system.StructStat;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link SmbFile} that survives short network outages. It remembers its offset, and when a
+ * call fails because the connection broke it waits, opens the file again at that offset and
+ * retries the call. It gives up after a few attempts.
+ *
+ * Calls may block for a while, so this is only meant for background transfers and not for the
+ * Samba worker threads.
+ */
+public class ResumableSmbFile implements SmbFile {
+
+  private static final String TAG = "ResumableSmbFile";
+
+  private static final int MAX_ATTEMPTS = 6;
+  private static final long INITIAL_RETRY_DELAY_MS = 500;
+  private static final long MAX_RETRY_DELAY_MS =
+      TimeUnit.MILLISECONDS.convert(16, TimeUnit.SECONDS);
+
+  private interface Operation<T> {
+    T run(SmbFile file) throws IOException;
+  }
+
+  private final SmbClient mClient;
+  private final String mUri;
+  private final String mReopenMode;
+  private final boolean mIsAppending;
+
+  private SmbFile mFile;
+  private long mOffset;
+
+  /**
+   * Opens the file.
+   *
+   * @param mode The mode to open the file with the first time. Later it's opened again without
+   *             truncating it.
+   */
+  public ResumableSmbFile(SmbClient client, String uri, String mode) throws IOException {
+    mClient = client;
+    mUri = uri;
+    mIsAppending = mode.startsWith("wa");
+    mReopenMode = ConnectionErrors.getReopenMode(mode);
+    mFile = client.openFile(uri, mode);
+  }
+
+  @Override
+  public int read(final ByteBuffer buffer, final int maxLen) throws IOException {
+    final int bytesRead = run(new Operation<Integer>() {
+      @Override
+      public Integer run(SmbFile file) throws IOException {
+        return file.read(buffer, maxLen);
+      }
+    });
+    mOffset += bytesRead;
+    return bytesRead;
+  }
+
+  @Override
+  public int read(final byte[] buffer, final int offset, final int maxLen) throws IOException {
+    final int bytesRead = run(new Operation<Integer>() {
+      @Override
+      public Integer run(SmbFile file) throws IOException {
+        return file.read(buffer, offset, maxLen);
+      }
+    });
+    mOffset += bytesRead;
+    return bytesRead;
+  }
+
+  @Override
+  public int write(final ByteBuffer buffer, final int length) throws IOException {
+    final Operation<Integer> write = new Operation<Integer>() {
+      @Override
+      public Integer run(SmbFile file) throws IOException {
+        return file.write(buffer, length);
+      }
+    };
+    // Writing the same bytes at the same offset again is harmless, but appending them isn't.
+    final int bytesWritten = mIsAppending ? write.run(mFile) : run(write);
+    mOffset += bytesWritten;
+    return bytesWritten;
+  }
+
+  @Override
+  public long seek(final long offset) throws IOException {
+    mOffset = run(new Operation<Long>() {
+      @Override
+      public Long run(SmbFile file) throws IOException {
+        return file.seek(offset);
+      }
+    });
+    return mOffset;
+  }
+
+  @Override
+  public StructStat fstat() throws IOException {
+    return run(new Operation<StructStat>() {
+      @Override
+      public StructStat run(SmbFile file) throws IOException {
+        return file.fstat();
+      }
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    final SmbFile file = mFile;
+    mFile = null;
+    if (file != null) {
+      file.close();
+    }
+  }
+
+  private <T> T run(Operation<T> operation) throws IOException {
+    long delay = INITIAL_RETRY_DELAY_MS;
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        if (mFile == null) {
+          reopen();
+        }
+        return operation.run(mFile);
+      } catch (IOException e) {
+        if (attempt >= MAX_ATTEMPTS || !ConnectionErrors.isConnectionError(e)) {
+          throw e;
+        }
+        Log.i(TAG, "Connection to " + mUri + " broke at offset " + mOffset + ". Attempt "
+            + attempt + " of " + MAX_ATTEMPTS + ".", e);
+      }
+
+      closeQuietly();
+      sleep(delay);
+      delay = Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+    }
+  }
+
+  private void reopen() throws IOException {
+    final SmbFile file = mClient.openFile(mUri, mReopenMode);
+    if (mOffset > 0 && !mIsAppending) {
+      try {
+        file.seek(mOffset);
+      } catch (IOException e) {
+        file.close();
+        throw e;
+      }
+    }
+    mFile = file;
+  }
+
+  private void closeQuietly() {
+    final SmbFile file = mFile;
+    mFile = null;
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      // Expected with a broken connection.
+    }
+  }
+
+  private static void sleep(long delay) throws InterruptedIOException {
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to reconnect.");
+    }
+  }
+}
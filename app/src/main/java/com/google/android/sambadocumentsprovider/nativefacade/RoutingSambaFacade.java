@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.nativefacade;
+
+import android.annotation.TargetApi;
+import android.os.ParcelFileDescriptor;
+import android.os.storage.StorageManager;
+import android.support.annotation.Nullable;
+import android.system.StructStat;
+import android.util.Log;
+
+import com.google.android.sambadocumentsprovider.base.OnTaskFinishedCallback;
+import com.google.android.sambadocumentsprovider.base.SingleFlight;
+import com.google.android.sambadocumentsprovider.provider.ByteBufferPool;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches calls to one of several Samba workers. Every server/share pair sticks to one worker
+ * so that a slow server only holds up the requests that go to it. Pairs are handed out to workers
+ * in round robin order the first time they are seen.
+ *
+ * Stats don't leave any state behind, so they also run on a few extra workers that only do
+ * stats. A stat takes an idle stat worker if there is one, and otherwise goes to the worker of its
+ * share. This lets the stats of a large folder run in parallel without ever holding up the worker
+ * of another share. Concurrent stats of the same document share one call.
+ *
+ * Directory handles are stateful, so each {@link #openDir(String)} call gets its own. Concurrent
+ * listings of one folder are instead deduplicated by the tasks that load them.
+ */
+class RoutingSambaFacade implements SmbFacade {
+
+  private static final String TAG = "RoutingSambaFacade";
+
+  private static final String SCHEME_PREFIX = "smb://";
+
+  private final List<SmbFacade> mClients;
+  private final List<SmbFacade> mStatClients;
+  private final AtomicBoolean[] mStatClientsBusy;
+  private final ConcurrentHashMap<String, Integer> mAssignments = new ConcurrentHashMap<>();
+  private final AtomicInteger mNextClient = new AtomicInteger();
+  // Mutations forget pending stats of the documents they touch both before and after they run, so
+  // that a stat started while they run isn't shared with later callers.
+  private final SingleFlight<String, StructStat> mStats = new SingleFlight<>();
+
+  RoutingSambaFacade(List<SmbFacade> clients, List<SmbFacade> statClients) {
+    mClients = clients;
+    mStatClients = statClients;
+    mStatClientsBusy = new AtomicBoolean[statClients.size()];
+    for (int i = 0; i < mStatClientsBusy.length; ++i) {
+      mStatClientsBusy[i] = new AtomicBoolean();
+    }
+  }
+
+  @Override
+  public void reset() {
+    for (SmbFacade client : mClients) {
+      client.reset();
+    }
+    for (SmbFacade client : mStatClients) {
+      client.reset();
+    }
+  }
+
+  /**
+   * Checks the connection of every worker that has been used, and only rebuilds the native
+   * contexts of those whose connection is gone. Workers are checked by a stat of one of the shares
+   * assigned to them. Stat workers don't keep anything worth saving and are always rebuilt. Blocks
+   * until all workers are checked.
+   *
+   * @return Number of share workers that were reset.
+   */
+  int resetDisconnected() {
+    for (SmbFacade client : mStatClients) {
+      client.reset();
+    }
+
+    final boolean[] probed = new boolean[mClients.size()];
+    int resetCount = 0;
+    for (Map.Entry<String, Integer> assignment : mAssignments.entrySet()) {
+      final String key = assignment.getKey();
+      final int index = assignment.getValue();
+      if (probed[index] || key.indexOf('/') < 0) {
+        // Already checked, or a server that can't be stat'ed.
+        continue;
+      }
+      probed[index] = true;
+
+      final SmbFacade client = mClients.get(index);
+      try {
+        client.stat(SCHEME_PREFIX + key);
+      } catch (IOException | RuntimeException e) {
+        if (ConnectionErrors.isConnectionError(e)) {
+          Log.i(TAG, "Connection of worker " + index + " is gone. Resetting it.", e);
+          client.reset();
+          ++resetCount;
+        }
+      }
+    }
+    return resetCount;
+  }
+
+  @Override
+  public SmbDir openDir(String uri) throws IOException {
+    return route(uri).openDir(uri);
+  }
+
+  @Override
+  public StructStat stat(final String uri) throws IOException {
+    return mStats.execute(uri, new SingleFlight.Call<StructStat>() {
+      @Override
+      public StructStat call() throws IOException {
+        for (int i = 0; i < mStatClientsBusy.length; ++i) {
+          if (mStatClientsBusy[i].compareAndSet(false, true)) {
+            try {
+              return mStatClients.get(i).stat(uri);
+            } finally {
+              mStatClientsBusy[i].set(false);
+            }
+          }
+        }
+        return route(uri).stat(uri);
+      }
+    });
+  }
+
+  @Override
+  public void createFile(String uri) throws IOException {
+    mStats.forget(uri);
+    try {
+      route(uri).createFile(uri);
+    } finally {
+      mStats.forget(uri);
+    }
+  }
+
+  @Override
+  public void mkdir(String uri) throws IOException {
+    mStats.forget(uri);
+    try {
+      route(uri).mkdir(uri);
+    } finally {
+      mStats.forget(uri);
+    }
+  }
+
+  @Override
+  public void rename(String uri, String newUri) throws IOException {
+    mStats.forget(uri);
+    mStats.forget(newUri);
+    try {
+      route(uri).rename(uri, newUri);
+    } finally {
+      mStats.forget(uri);
+      mStats.forget(newUri);
+    }
+  }
+
+  @Override
+  public long copy(String uri, String newUri, long offset, long count) throws IOException {
+    mStats.forget(newUri);
+    try {
+      return route(uri).copy(uri, newUri, offset, count);
+    } finally {
+      mStats.forget(newUri);
+    }
+  }
+
+  @Override
+  public void unlink(String uri) throws IOException {
+    mStats.forget(uri);
+    try {
+      route(uri).unlink(uri);
+    } finally {
+      mStats.forget(uri);
+    }
+  }
+
+  @Override
+  public void rmdir(String uri) throws IOException {
+    mStats.forget(uri);
+    try {
+      route(uri).rmdir(uri);
+    } finally {
+      mStats.forget(uri);
+    }
+  }
+
+  @Override
+  public SmbFile openFile(String uri, String mode) throws IOException {
+    mStats.forget(uri);
+    try {
+      return route(uri).openFile(uri, mode);
+    } finally {
+      mStats.forget(uri);
+    }
+  }
+
+  @Override
+  @TargetApi(26)
+  public ParcelFileDescriptor openProxyFile(
+      String uri,
+      String mode,
+      StorageManager storageManager,
+      ByteBufferPool bufferPool,
+      @Nullable OnTaskFinishedCallback<String> callback) throws IOException {
+    return route(uri).openProxyFile(uri, mode, storageManager, bufferPool, callback);
+  }
+
+  private SmbFacade route(String uri) {
+    // Assignments are recorded even with one worker, they tell which shares to check in
+    // resetDisconnected().
+    final String key = getRoutingKey(uri);
+    Integer index = mAssignments.get(key);
+    if (index == null) {
+      final int next = (mNextClient.getAndIncrement() & Integer.MAX_VALUE) % mClients.size();
+      final Integer existing = mAssignments.putIfAbsent(key, next);
+      index = (existing == null) ? next : existing;
+    }
+    return mClients.get(index);
+  }
+
+  /**
+   * @return The lower-cased "server/share" part of the uri, or just the server if the uri points
+   * to a server or to the network root.
+   */
+  static String getRoutingKey(String uri) {
+    if (uri == null) {
+      return "";
+    }
+
+    final int start = uri.regionMatches(true, 0, SCHEME_PREFIX, 0, SCHEME_PREFIX.length())
+        ? SCHEME_PREFIX.length() : 0;
+    final int hostEnd = uri.indexOf('/', start);
+    if (hostEnd < 0) {
+      return uri.substring(start).toLowerCase();
+    }
+    int shareEnd = uri.indexOf('/', hostEnd + 1);
+    if (shareEnd < 0) {
+      shareEnd = uri.length();
+    }
+    return uri.substring(start, shareEnd).toLowerCase();
+  }
+}
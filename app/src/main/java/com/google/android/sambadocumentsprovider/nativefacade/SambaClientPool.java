@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.nativefacade;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed set of {@link SambaMessageLooper}s, each of which owns its own native Samba context and
+ * worker thread. Some of them are assigned to shares, the others only run stats. All of them share
+ * one credential cache.
+ */
+public class SambaClientPool {
+
+  private final List<SmbFacade> mClients;
+  private final CredentialCache mCredentialCache;
+  private final NativeCredentialCache mNativeCredentialCache;
+  private final RoutingSambaFacade mRoutingClient;
+
+  /**
+   * @param size Number of workers that shares are assigned to.
+   * @param statSize Number of extra workers that only run stats.
+   */
+  public SambaClientPool(int size, int statSize) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Pool size must be positive: " + size);
+    }
+    if (statSize < 0) {
+      throw new IllegalArgumentException("Stat pool size must not be negative: " + statSize);
+    }
+
+    final List<SmbFacade> clients = new ArrayList<>(size);
+
+    final SambaMessageLooper first = new SambaMessageLooper(null, "SambaWorker-0");
+    clients.add(first.getClient());
+    for (int i = 1; i < size; ++i) {
+      final SambaMessageLooper looper =
+          new SambaMessageLooper(first.getNativeCredentialCache(), "SambaWorker-" + i);
+      clients.add(looper.getClient());
+    }
+
+    final List<SmbFacade> statClients = new ArrayList<>(statSize);
+    for (int i = 0; i < statSize; ++i) {
+      final SambaMessageLooper looper =
+          new SambaMessageLooper(first.getNativeCredentialCache(), "SambaStatWorker-" + i);
+      statClients.add(looper.getClient());
+    }
+
+    mClients = clients;
+    mCredentialCache = first.getCredentialCache();
+    mNativeCredentialCache = first.getNativeCredentialCache();
+    mRoutingClient = new RoutingSambaFacade(clients, statClients);
+  }
+
+  /**
+   * @return A client that dispatches each call to the worker assigned to its server and share.
+   */
+  public SmbFacade getClient() {
+    return mRoutingClient;
+  }
+
+  /**
+   * Creates a watcher whose connections use the same credentials as the clients of this pool.
+   */
+  public DirectoryWatcher createWatcher(DirectoryWatcher.Listener listener) {
+    return new DirectoryWatcher(mNativeCredentialCache, listener);
+  }
+
+  /**
+   * Rebuilds the native contexts whose connection broke, e.g. after a network change, and keeps
+   * the others with their sessions and open files. Blocks while connections are checked.
+   */
+  public void resetDisconnected() {
+    mRoutingClient.resetDisconnected();
+  }
+
+  public CredentialCache getCredentialCache() {
+    return mCredentialCache;
+  }
+
+  public int size() {
+    return mClients.size();
+  }
+}
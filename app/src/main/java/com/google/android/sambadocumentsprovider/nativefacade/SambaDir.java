@@ -21,11 +21,15 @@ import android.support.annotation.Nullable;
 import android.system.ErrnoException;
 import com.google.android.sambadocumentsprovider.base.DirectoryEntry;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 class SambaDir implements SmbDir {
 
+  private static final int BATCH_BUFFER_CAPACITY = 64 * 1024;
+
   private final long mNativeHandler;
   private int mNativeDh;
+  private ByteBuffer mBatchBuffer;
 
   SambaDir(long nativeHandler, int nativeFd) {
     mNativeHandler = nativeHandler;
@@ -41,6 +45,51 @@ class SambaDir implements SmbDir {
     }
   }
 
+  @Override
+  public DirectoryEntry readDirPlus() throws IOException {
+    try {
+      return readDirPlus(mNativeHandler, mNativeDh);
+    } catch (ErrnoException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public DirectoryEntryBatch readDirBatch(boolean withStats) throws IOException {
+    if (mBatchBuffer == null) {
+      mBatchBuffer = ByteBuffer.allocateDirect(BATCH_BUFFER_CAPACITY);
+    }
+
+    try {
+      final int length = readDirBatch(mNativeHandler, mNativeDh, mBatchBuffer, withStats);
+      if (length == 0) {
+        return null;
+      }
+
+      // The buffer is reused by the next call, so hand out a copy.
+      final byte[] data = new byte[length];
+      mBatchBuffer.clear();
+      mBatchBuffer.get(data);
+      return new DirectoryEntryBatch(data);
+    } catch (ErrnoException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Blocks and reports changes made to this directory until the listener asks to stop.
+   *
+   * @param filter The kinds of changes to report, a combination of the NOTIFY_CHANGE_* flags in
+   *               {@link DirectoryWatcher}.
+   * @param timeoutMs How often the listener is called when nothing changes.
+   */
+  void watch(int filter, int timeoutMs, NotifyListener listener) throws IOException {
+    try {
+      watch(mNativeHandler, mNativeDh, filter, timeoutMs, listener);
+    } catch (ErrnoException e) {
+      throw new IOException(e);
+    }
+  }
 
   @Override
   public void close() throws IOException {
@@ -54,5 +103,21 @@ class SambaDir implements SmbDir {
   }
 
   private native @Nullable DirectoryEntry readDir(long handler, int fd) throws ErrnoException;
+  private native @Nullable DirectoryEntry readDirPlus(long handler, int fd)
+      throws ErrnoException;
+  private native int readDirBatch(long handler, int fd, ByteBuffer buffer, boolean withStats)
+      throws ErrnoException;
+  private native void watch(
+      long handler, int fd, int filter, int timeoutMs, NotifyListener listener)
+      throws ErrnoException;
   private native void close(long handler, int fd) throws ErrnoException;
+
+  interface NotifyListener {
+    /**
+     * Called for every change, and with action 0 and no name when nothing changed for a while.
+     *
+     * @return Whether to keep watching.
+     */
+    boolean onNotify(int action, @Nullable String name);
+  }
 }
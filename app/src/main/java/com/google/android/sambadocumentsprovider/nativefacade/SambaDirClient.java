@@ -29,11 +29,13 @@ import java.lang.annotation.RetentionPolicy;
 
 class SambaDirClient extends BaseClient implements SmbDir {
 
-  @IntDef({ READ_DIR, CLOSE })
+  @IntDef({ READ_DIR, CLOSE, READ_DIR_PLUS, READ_DIR_BATCH })
   @Retention(RetentionPolicy.SOURCE)
   @interface Operation {}
   private static final int READ_DIR = 0;
   private static final int CLOSE = READ_DIR + 1;
+  private static final int READ_DIR_PLUS = CLOSE + 1;
+  private static final int READ_DIR_BATCH = READ_DIR_PLUS + 1;
 
   SambaDirClient(Looper looper, SmbDir smbDirImpl) {
     mHandler = new SambaDirHandler(looper, smbDirImpl);
@@ -49,6 +51,27 @@ class SambaDirClient extends BaseClient implements SmbDir {
     }
   }
 
+  @Nullable
+  @Override
+  public DirectoryEntry readDirPlus() throws IOException {
+    try (MessageValues<DirectoryEntry> messageValues = MessageValues.obtain()) {
+      final Message msg = mHandler.obtainMessage(READ_DIR_PLUS, messageValues);
+      enqueue(msg);
+      return messageValues.getObj();
+    }
+  }
+
+  @Nullable
+  @Override
+  public DirectoryEntryBatch readDirBatch(boolean withStats) throws IOException {
+    try (MessageValues<DirectoryEntryBatch> messageValues = MessageValues.obtain()) {
+      final Message msg = mHandler.obtainMessage(READ_DIR_BATCH, messageValues);
+      msg.arg1 = withStats ? 1 : 0;
+      enqueue(msg);
+      return messageValues.getObj();
+    }
+  }
+
   @Override
   public void close() throws IOException {
     try (MessageValues<?> messageValues = MessageValues.obtain()) {
@@ -71,12 +94,18 @@ class SambaDirClient extends BaseClient implements SmbDir {
     @Override
     @SuppressWarnings("unchecked")
     public void processMessage(Message msg) {
-      final MessageValues<DirectoryEntry> messageValues = (MessageValues<DirectoryEntry>) msg.obj;
+      final MessageValues messageValues = (MessageValues) msg.obj;
       try {
         switch (msg.what) {
           case READ_DIR:
             messageValues.setObj(mSmbDirImpl.readDir());
             break;
+          case READ_DIR_BATCH:
+            messageValues.setObj(mSmbDirImpl.readDirBatch(msg.arg1 != 0));
+            break;
+          case READ_DIR_PLUS:
+            messageValues.setObj(mSmbDirImpl.readDirPlus());
+            break;
           case CLOSE:
             mSmbDirImpl.close();
             break;
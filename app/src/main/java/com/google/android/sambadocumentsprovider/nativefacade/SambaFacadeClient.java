@@ -41,7 +41,7 @@ import java.util.List;
 
 class SambaFacadeClient extends BaseClient implements SmbFacade {
 
-  @IntDef({ RESET, READ_DIR, STAT, MKDIR, RENAME, UNLINK, RMDIR, OPEN_FILE })
+  @IntDef({ RESET, READ_DIR, STAT, MKDIR, RENAME, COPY, UNLINK, RMDIR, OPEN_FILE })
   @Retention(RetentionPolicy.SOURCE)
   @interface Operation {}
   static final int RESET = 1;
@@ -50,13 +50,16 @@ class SambaFacadeClient extends BaseClient implements SmbFacade {
   static final int CREATE_FILE = STAT + 1;
   static final int MKDIR = CREATE_FILE + 1;
   static final int RENAME = MKDIR + 1;
-  static final int UNLINK = RENAME + 1;
+  static final int COPY = RENAME + 1;
+  static final int UNLINK = COPY + 1;
   static final int RMDIR = UNLINK + 1;
   static final int OPEN_FILE = RMDIR + 1;
 
   private static final String URI = "URI";
   private static final String NEW_URI = "NEW_URI";
   private static final String MODE = "MODE";
+  private static final String OFFSET = "OFFSET";
+  private static final String COUNT = "COUNT";
 
   SambaFacadeClient(Looper looper, SmbClient clientImpl) {
     mHandler = new SambaServiceHandler(looper, clientImpl);
@@ -125,6 +128,18 @@ class SambaFacadeClient extends BaseClient implements SmbFacade {
     }
   }
 
+  @Override
+  public long copy(String uri, String newUri, long offset, long count) throws IOException {
+    try (final MessageValues<Long> messageValues = MessageValues.obtain()) {
+      final Message msg = obtainMessage(COPY, messageValues, uri);
+      msg.peekData().putString(NEW_URI, newUri);
+      msg.peekData().putLong(OFFSET, offset);
+      msg.peekData().putLong(COUNT, count);
+      enqueue(msg);
+      return messageValues.getObj();
+    }
+  }
+
   @Override
   public void unlink(String uri) throws IOException {
     try (final MessageValues<?> messageValues = MessageValues.obtain()) {
@@ -159,7 +174,7 @@ class SambaFacadeClient extends BaseClient implements SmbFacade {
     SambaFile file = openFileRaw(uri, mode);
     return storageManager.openProxyFileDescriptor(
             ParcelFileDescriptor.parseMode(mode),
-            new SambaProxyFileCallback(uri, file, bufferPool, callback),
+            new SambaProxyFileCallback(uri, file, bufferPool, mHandler, callback),
             mHandler);
   }
 
@@ -215,6 +230,13 @@ class SambaFacadeClient extends BaseClient implements SmbFacade {
             mClientImpl.rename(uri, newUri);
             break;
           }
+          case COPY: {
+            final String newUri = args.getString(NEW_URI);
+            final long offset = args.getLong(OFFSET);
+            final long count = args.getLong(COUNT);
+            messageValues.setObj(mClientImpl.copy(uri, newUri, offset, count));
+            break;
+          }
           case UNLINK:
             mClientImpl.unlink(uri);
             break;
@@ -19,23 +19,48 @@ package com.google.android.sambadocumentsprovider.nativefacade;
 
 import android.system.ErrnoException;
 import android.system.StructStat;
+import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+/**
+ * An open file of a {@link NativeSambaFacade}.
+ *
+ * If the facade's native context is rebuilt while the file is in use, the file is opened again at
+ * the offset it was at. Dropped connections are left to {@link ResumableSmbFile}.
+ */
 class SambaFile implements SmbFile {
 
-  private final long mNativeHandler;
+  private static final String TAG = "SambaFile";
+
+  // Native buffer that reads into arrays go through. Reads don't block on the network while the
+  // array is pinned, so each read is copied from here.
+  private static final int READ_BUFFER_SIZE = 128 * 1024;
+
+  private final NativeSambaFacade mClient;
+  private final String mUri;
+  private final String mMode;
 
+  private long mNativeHandler;
+  private int mGeneration;
   private int mNativeFd;
   private long mOffset;
 
-  SambaFile(long nativeHandler, int nativeFd) {
+  private ByteBuffer mReadBuffer;
+
+  SambaFile(NativeSambaFacade client, String uri, String mode, long nativeHandler, int generation,
+      int nativeFd) {
+    mClient = client;
+    mUri = uri;
+    mMode = mode;
     mNativeHandler = nativeHandler;
+    mGeneration = generation;
     mNativeFd = nativeFd;
   }
 
   public int read(ByteBuffer buffer, int maxLen) throws IOException {
+    ensureOpen();
     try {
       final int bytesRead =
           read(mNativeHandler, mNativeFd, buffer, Math.min(maxLen, buffer.capacity()));
@@ -46,7 +71,28 @@ class SambaFile implements SmbFile {
     }
   }
 
+  public int read(byte[] buffer, int offset, int maxLen) throws IOException {
+    if (offset < 0 || maxLen < 0 || offset + maxLen > buffer.length) {
+      throw new IndexOutOfBoundsException(
+          "offset " + offset + " maxLen " + maxLen + " length " + buffer.length);
+    }
+
+    ensureOpen();
+    try {
+      if (mReadBuffer == null) {
+        mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+      }
+      final int bytesRead = readArray(
+          mNativeHandler, mNativeFd, mReadBuffer, READ_BUFFER_SIZE, buffer, offset, maxLen);
+      mOffset += bytesRead;
+      return bytesRead;
+    } catch(ErrnoException e) {
+      throw new IOException("Failed to read file. Fd: " + mNativeFd, e);
+    }
+  }
+
   public int write(ByteBuffer buffer, int length) throws IOException {
+    ensureOpen();
     try {
       final int bytesWritten = write(mNativeHandler, mNativeFd, buffer, length);
       mOffset += bytesWritten;
@@ -61,6 +107,7 @@ class SambaFile implements SmbFile {
       return mOffset;
     }
 
+    ensureOpen();
     try {
       mOffset = seek(mNativeHandler, mNativeFd, offset, 0);
       return mOffset;
@@ -71,6 +118,7 @@ class SambaFile implements SmbFile {
 
   @Override
   public StructStat fstat() throws IOException {
+    ensureOpen();
     try {
       return fstat(mNativeHandler, mNativeFd);
     } catch (ErrnoException e) {
@@ -80,6 +128,13 @@ class SambaFile implements SmbFile {
 
   @Override
   public void close() throws IOException {
+    mReadBuffer = null;
+    if (mGeneration != mClient.getGeneration()) {
+      // The context this file was opened in is gone, and the file with it.
+      mNativeFd = -1;
+      return;
+    }
+
     try {
       int fd = mNativeFd;
       mNativeFd = -1;
@@ -89,9 +144,48 @@ class SambaFile implements SmbFile {
     }
   }
 
+  /**
+   * Reopens the file if the native context it was opened in was rebuilt. Its handle is not valid
+   * in the new context, and the old context must not be used anymore.
+   */
+  private void ensureOpen() throws IOException {
+    if (mGeneration == mClient.getGeneration()) {
+      return;
+    }
+    try {
+      reopen();
+    } catch (ErrnoException e) {
+      throw new IOException("Failed to reopen " + mUri, e);
+    }
+  }
+
+  private void reopen() throws ErrnoException {
+    if (mNativeFd < 0) {
+      throw new IllegalStateException("File " + mUri + " is closed.");
+    }
+
+    final long handler = mClient.getNativeHandler();
+    final int generation = mClient.getGeneration();
+    final int fd = mClient.openFileHandle(mUri, ConnectionErrors.getReopenMode(mMode));
+    mNativeHandler = handler;
+    mGeneration = generation;
+    mNativeFd = fd;
+    if (mOffset > 0 && !isAppending()) {
+      seek(handler, fd, mOffset, 0);
+    }
+    Log.i(TAG, "Reopened " + mUri + " at offset " + mOffset);
+  }
+
+  private boolean isAppending() {
+    return mMode.startsWith("wa");
+  }
+
   private native int read(long handler, int fd, ByteBuffer buffer, int capacity)
       throws ErrnoException;
 
+  private native int readArray(long handler, int fd, ByteBuffer chunk, int chunkSize,
+      byte[] buffer, int offset, int maxLen) throws ErrnoException;
+
   private native int write(long handler, int fd, ByteBuffer buffer, int length)
       throws ErrnoException;
 
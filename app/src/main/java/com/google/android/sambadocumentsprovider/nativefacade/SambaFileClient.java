@@ -38,6 +38,7 @@ class SambaFileClient extends BaseClient implements SmbFile {
   private static final int CLOSE = 3;
   private static final int SEEK = 4;
   private static final int FSTAT = 5;
+  private static final int READ_ARRAY = 6;
 
   SambaFileClient(Looper looper, SmbFile smbFileImpl) {
     mHandler = new SambaFileHandler(looper, smbFileImpl);
@@ -54,6 +55,18 @@ class SambaFileClient extends BaseClient implements SmbFile {
     }
   }
 
+  @Override
+  public int read(byte[] buffer, int offset, int maxLen) throws IOException {
+    try(final MessageValues<byte[]> messageValues = MessageValues.obtain()) {
+      messageValues.setInt(maxLen);
+      messageValues.setObj(buffer);
+      final Message msg = mHandler.obtainMessage(READ_ARRAY, messageValues);
+      msg.arg1 = offset;
+      enqueue(msg);
+      return messageValues.getInt();
+    }
+  }
+
   @Override
   public int write(ByteBuffer buffer, int length) throws IOException {
     try (final MessageValues<ByteBuffer> messageValues = MessageValues.obtain()) {
@@ -116,6 +129,12 @@ class SambaFileClient extends BaseClient implements SmbFile {
             messageValues.setInt(mSmbFileImpl.read(readBuffer, maxLen));
             break;
           }
+          case READ_ARRAY: {
+            final int maxLen = messageValues.getInt();
+            final byte[] readArray = (byte[]) messageValues.getObj();
+            messageValues.setInt(mSmbFileImpl.read(readArray, msg.arg1, maxLen));
+            break;
+          }
           case WRITE: {
             final ByteBuffer writeBuffer = (ByteBuffer) messageValues.getObj();
             final int length = msg.arg1;
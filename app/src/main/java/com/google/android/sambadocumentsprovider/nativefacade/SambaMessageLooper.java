@@ -23,12 +23,7 @@ import java.util.concurrent.CountDownLatch;
 
 public class SambaMessageLooper {
 
-  private final Thread mLooperThread = new Thread(new Runnable() {
-    @Override
-    public void run() {
-      prepare();
-    }
-  });
+  private final Thread mLooperThread;
   private final CountDownLatch mLatch = new CountDownLatch(1);
 
   private volatile Looper mLooper;
@@ -39,6 +34,21 @@ public class SambaMessageLooper {
   private CredentialCacheClient mCredentialCacheClient;
 
   public SambaMessageLooper() {
+    this(null, "SambaMessageLooper");
+  }
+
+  /**
+   * @param credentialCache The credential cache to share with other loopers, or null to create
+   *                        a new one on the looper thread.
+   */
+  SambaMessageLooper(NativeCredentialCache credentialCache, String name) {
+    mCredentialCacheImpl = credentialCache;
+    mLooperThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        prepare();
+      }
+    }, name);
     init();
   }
 
@@ -50,6 +60,10 @@ public class SambaMessageLooper {
     return mCredentialCacheClient;
   }
 
+  NativeCredentialCache getNativeCredentialCache() {
+    return mCredentialCacheImpl;
+  }
+
   private void init() {
     try {
       mLooperThread.start();
@@ -68,7 +82,9 @@ public class SambaMessageLooper {
     Looper.prepare();
     mLooper = Looper.myLooper();
 
-    mCredentialCacheImpl = new NativeCredentialCache();
+    if (mCredentialCacheImpl == null) {
+      mCredentialCacheImpl = new NativeCredentialCache();
+    }
     mClientImpl = new NativeSambaFacade(mCredentialCacheImpl);
     mLatch.countDown();
 
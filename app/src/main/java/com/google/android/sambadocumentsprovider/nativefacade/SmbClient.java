@@ -36,6 +36,15 @@ public interface SmbClient {
 
   void rename(String uri, String newUri) throws IOException;
 
+  /**
+   * Copies up to count bytes at offset of the file at uri to the same offset of the existing file
+   * at newUri, without transferring the content through this device. Large files are copied in
+   * several calls so that other requests to the share aren't held up.
+   *
+   * @return the number of bytes copied, which is less than count only at the end of the file.
+   */
+  long copy(String uri, String newUri, long offset, long count) throws IOException;
+
   void unlink(String uri) throws IOException;
 
   void rmdir(String uri) throws IOException;
@@ -26,4 +26,19 @@ public interface SmbDir extends Closeable {
 
   @Nullable DirectoryEntry readDir() throws IOException;
 
+  /**
+   * Same as {@link #readDir()}, but also fills {@link DirectoryEntry#getStat()} if the Samba
+   * library can return stats together with the listing. Only valid for directories inside a
+   * share.
+   */
+  @Nullable DirectoryEntry readDirPlus() throws IOException;
+
+  /**
+   * Reads as many entries as fit in one native call.
+   *
+   * @param withStats Whether to ask for stats, like {@link #readDirPlus()}.
+   * @return The next entries, or {@code null} if there are no more.
+   */
+  @Nullable DirectoryEntryBatch readDirBatch(boolean withStats) throws IOException;
+
 }
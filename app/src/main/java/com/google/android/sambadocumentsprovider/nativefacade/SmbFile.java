@@ -26,6 +26,11 @@ import java.nio.ByteBuffer;
 public interface SmbFile extends Closeable {
 
   int read(ByteBuffer buffer, int maxLen) throws IOException;
+
+  /**
+   * Reads straight into a Java array without an intermediate direct buffer.
+   */
+  int read(byte[] buffer, int offset, int maxLen) throws IOException;
   int write(ByteBuffer buffer, int length) throws IOException;
   long seek(long offset) throws IOException;
   StructStat fstat() throws IOException;
@@ -17,26 +17,174 @@
 
 package com.google.android.sambadocumentsprovider.provider;
 
-import android.support.v4.util.Pools;
+import android.os.SystemClock;
+import android.util.Log;
+
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
+/**
+ * Pool of direct buffers in a few size classes.
+ *
+ * The pool tracks the off-heap bytes of all buffers it handed out or keeps. When a new buffer
+ * would go over {@link #MAX_TOTAL_BYTES}, idle buffers of other size classes are dropped first,
+ * then {@link #obtainBuffer(int)} waits up to {@link #MAX_WAIT_MS} for a buffer to come back. If
+ * none does, the buffer is allocated anyway rather than failing the I/O, and counted as an
+ * overflow. {@link #obtainBufferNoWait(int)} skips the wait, for threads that must not block.
+ */
 public class ByteBufferPool {
 
-  private static final int BUFFER_CAPACITY = 1024 * 1024;
-  private final Pools.Pool<ByteBuffer> mBufferPool = new Pools.SynchronizedPool<>(16);
+  private static final String TAG = "ByteBufferPool";
+
+  private static final int[] SIZE_CLASSES =
+      { 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+  private static final int[] MAX_IDLE_BUFFERS = { 16, 8, 8, 2 };
+
+  private static final long MAX_TOTAL_BYTES = 32 * 1024 * 1024;
+  private static final long MAX_WAIT_MS = 2000;
+
+  private final ArrayDeque<ByteBuffer>[] mIdleBuffers;
+
+  private long mTotalBytes;
+  private long mPeakBytes;
+  private int mHits;
+  private int mMisses;
+  private int mOverflows;
+
+  @SuppressWarnings("unchecked")
+  public ByteBufferPool() {
+    mIdleBuffers = new ArrayDeque[SIZE_CLASSES.length];
+    for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+      mIdleBuffers[i] = new ArrayDeque<>(MAX_IDLE_BUFFERS[i]);
+    }
+  }
+
+  /**
+   * @return A buffer of the smallest size class that holds minCapacity bytes, or of the largest
+   * size class if none does. It may wait for other buffers to be recycled.
+   */
+  public ByteBuffer obtainBuffer(int minCapacity) {
+    return obtainBuffer(minCapacity, MAX_WAIT_MS);
+  }
+
+  /**
+   * Same as {@link #obtainBuffer(int)}, but allocates over the budget right away instead of
+   * waiting. Use it on Samba looper threads, which other requests are queued behind.
+   */
+  public ByteBuffer obtainBufferNoWait(int minCapacity) {
+    return obtainBuffer(minCapacity, 0);
+  }
 
-  public ByteBuffer obtainBuffer() {
-    ByteBuffer buffer = mBufferPool.acquire();
+  private synchronized ByteBuffer obtainBuffer(int minCapacity, long maxWaitMs) {
+    final int sizeClass = getSizeClass(minCapacity);
+    final int capacity = SIZE_CLASSES[sizeClass];
 
-    if (buffer == null) {
-      buffer = ByteBuffer.allocateDirect(BUFFER_CAPACITY);
+    ByteBuffer buffer = mIdleBuffers[sizeClass].poll();
+    if (buffer != null) {
+      ++mHits;
+      return buffer;
     }
+    ++mMisses;
+
+    if (mTotalBytes + capacity > MAX_TOTAL_BYTES) {
+      trimIdleBuffers(capacity);
+    }
+
+    final long deadline = SystemClock.uptimeMillis() + maxWaitMs;
+    long remaining = maxWaitMs;
+    while (mTotalBytes + capacity > MAX_TOTAL_BYTES && remaining > 0) {
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
 
-    return buffer;
+      buffer = mIdleBuffers[sizeClass].poll();
+      if (buffer != null) {
+        return buffer;
+      }
+      trimIdleBuffers(capacity);
+      remaining = deadline - SystemClock.uptimeMillis();
+    }
+
+    if (mTotalBytes + capacity > MAX_TOTAL_BYTES) {
+      ++mOverflows;
+      Log.w(TAG, "Over the direct memory budget, allocating " + capacity + " bytes anyway.");
+    }
+
+    mTotalBytes += capacity;
+    mPeakBytes = Math.max(mPeakBytes, mTotalBytes);
+    return ByteBuffer.allocateDirect(capacity);
   }
 
-  public void recycleBuffer(ByteBuffer buffer) {
+  public synchronized void recycleBuffer(ByteBuffer buffer) {
     buffer.clear();
-    mBufferPool.release(buffer);
+
+    final int sizeClass = findSizeClass(buffer.capacity());
+    if (sizeClass >= 0 && mIdleBuffers[sizeClass].size() < MAX_IDLE_BUFFERS[sizeClass]
+        && mTotalBytes <= MAX_TOTAL_BYTES) {
+      mIdleBuffers[sizeClass].push(buffer);
+    } else {
+      // Leave the buffer to the GC.
+      mTotalBytes -= buffer.capacity();
+    }
+    notifyAll();
+  }
+
+  public synchronized long getTotalBytes() {
+    return mTotalBytes;
+  }
+
+  public synchronized long getPeakBytes() {
+    return mPeakBytes;
+  }
+
+  public synchronized int getHitCount() {
+    return mHits;
+  }
+
+  public synchronized int getMissCount() {
+    return mMisses;
+  }
+
+  public synchronized int getOverflowCount() {
+    return mOverflows;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ByteBufferPool{total=" + mTotalBytes + " peak=" + mPeakBytes + " hits=" + mHits
+        + " misses=" + mMisses + " overflows=" + mOverflows + "}";
+  }
+
+  /**
+   * Drops idle buffers, largest first, until a buffer of the given capacity fits in the budget.
+   */
+  private void trimIdleBuffers(int capacity) {
+    for (int i = SIZE_CLASSES.length - 1; i >= 0; --i) {
+      while (mTotalBytes + capacity > MAX_TOTAL_BYTES && !mIdleBuffers[i].isEmpty()) {
+        mIdleBuffers[i].poll();
+        mTotalBytes -= SIZE_CLASSES[i];
+      }
+    }
+  }
+
+  private static int getSizeClass(int minCapacity) {
+    for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+      if (SIZE_CLASSES[i] >= minCapacity) {
+        return i;
+      }
+    }
+    return SIZE_CLASSES.length - 1;
+  }
+
+  private static int findSizeClass(int capacity) {
+    for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+      if (SIZE_CLASSES[i] == capacity) {
+        return i;
+      }
+    }
+    return -1;
   }
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.provider;
+
+import android.os.Handler;
+import android.os.MessageQueue;
+import android.util.Log;
+
+import com.google.android.sambadocumentsprovider.BuildConfig;
+import com.google.android.sambadocumentsprovider.nativefacade.SmbFile;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Block cache with read-ahead for one open file.
+ *
+ * Reads are served from fixed-size blocks kept in a small LRU. When reads are found to be
+ * sequential, the following blocks are prefetched on the file's handler thread, and the prefetch
+ * window grows the longer the pattern holds. The thread is shared with other requests to the
+ * share, so blocks are only prefetched one at a time while it has nothing else to do.
+ *
+ * Blocks of all open files share a budget of {@link #MAX_TOTAL_BLOCKS} that is never exceeded.
+ * Once it's used up, files stop reading ahead and reuse their own least recently used blocks for
+ * reads. Files without any blocks read straight into the caller's buffer.
+ *
+ * Not thread safe. It has to be used on the thread of the handler passed in, which is the thread
+ * that owns the underlying native file.
+ */
+class ReadAheadCache {
+
+  private static final String TAG = "ReadAheadCache";
+
+  static final int BLOCK_SIZE = 128 * 1024;
+  private static final int MAX_BLOCKS = 16;
+  private static final int MAX_PREFETCH_BLOCKS = 8;
+  private static final int MAX_TOTAL_BLOCKS = 64;
+
+  // Blocks allocated by all caches, whether they hold data or are kept for reuse.
+  private static final AtomicInteger sTotalBlocks = new AtomicInteger();
+
+  private final SmbFile mFile;
+  private final Handler mHandler;
+  private final MessageQueue mQueue;
+
+  private final LinkedHashMap<Long, Block> mBlocks =
+      new LinkedHashMap<Long, Block>(MAX_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+          if (size() > MAX_BLOCKS) {
+            recycle(eldest.getValue());
+            return true;
+          }
+          return false;
+        }
+      };
+  private final Deque<byte[]> mFreeArrays = new ArrayDeque<>();
+
+  private long mNextSequentialOffset = -1;
+  private int mPrefetchWindow;
+  private long mPrefetchedUpTo = -1;
+  private long mEndOfFileBlock = Long.MAX_VALUE;
+  private boolean mClosed;
+  private boolean mWaitingForIdle;
+
+  private int mHits;
+  private int mMisses;
+
+  private final Runnable mPrefetchRunnable = new Runnable() {
+    @Override
+    public void run() {
+      prefetchNextBlock();
+    }
+  };
+
+  private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+    @Override
+    public boolean queueIdle() {
+      mWaitingForIdle = false;
+      mHandler.post(mPrefetchRunnable);
+      return false;
+    }
+  };
+
+  ReadAheadCache(SmbFile file, Handler handler) {
+    mFile = file;
+    mHandler = handler;
+    mQueue = handler.getLooper().getQueue();
+  }
+
+  int read(long offset, int size, byte[] data) throws IOException {
+    updatePattern(offset, size);
+
+    int total = 0;
+    while (total < size) {
+      final long position = offset + total;
+      final long index = position / BLOCK_SIZE;
+      if (index > mEndOfFileBlock) {
+        break;
+      }
+
+      final Block block = getBlock(index);
+      if (block == null) {
+        // No memory for blocks.
+        return total + readDirect(position, data, total, size - total);
+      }
+
+      final int blockOffset = (int) (position - index * BLOCK_SIZE);
+      if (blockOffset >= block.mLength) {
+        break;
+      }
+
+      final int count = Math.min(size - total, block.mLength - blockOffset);
+      System.arraycopy(block.mData, blockOffset, data, total, count);
+      total += count;
+
+      if (block.mLength < BLOCK_SIZE) {
+        // End of file.
+        break;
+      }
+    }
+
+    schedulePrefetch(offset + total);
+    return total;
+  }
+
+  /**
+   * Drops all cached data, e.g. because the file has been written to.
+   */
+  void invalidate() {
+    cancelPrefetch();
+    for (Block block : mBlocks.values()) {
+      recycle(block);
+    }
+    mBlocks.clear();
+    mPrefetchedUpTo = -1;
+    mEndOfFileBlock = Long.MAX_VALUE;
+  }
+
+  void close() {
+    mClosed = true;
+    invalidate();
+    releaseBlocks(mFreeArrays.size());
+    mFreeArrays.clear();
+    if (BuildConfig.DEBUG) Log.d(TAG, "Block hits: " + mHits + " misses: " + mMisses);
+  }
+
+  private void updatePattern(long offset, int size) {
+    if (offset == mNextSequentialOffset) {
+      mPrefetchWindow = Math.min(Math.max(1, mPrefetchWindow * 2), MAX_PREFETCH_BLOCKS);
+    } else {
+      // Random access. Keep serving whole blocks so that nearby reads still hit, but stop
+      // reading ahead until the pattern turns sequential again.
+      mPrefetchWindow = 0;
+      mPrefetchedUpTo = -1;
+      cancelPrefetch();
+    }
+    mNextSequentialOffset = offset + size;
+  }
+
+  private void cancelPrefetch() {
+    mHandler.removeCallbacks(mPrefetchRunnable);
+    if (mWaitingForIdle) {
+      mQueue.removeIdleHandler(mIdleHandler);
+      mWaitingForIdle = false;
+    }
+  }
+
+  private void schedulePrefetch(long position) {
+    if (mPrefetchWindow == 0) {
+      return;
+    }
+
+    final long lastIndex = position / BLOCK_SIZE + mPrefetchWindow;
+    if (lastIndex > mPrefetchedUpTo) {
+      mPrefetchedUpTo = lastIndex;
+      cancelPrefetch();
+      mHandler.post(mPrefetchRunnable);
+    }
+  }
+
+  private void prefetchNextBlock() {
+    if (mClosed || mPrefetchWindow == 0) {
+      return;
+    }
+
+    if (!mQueue.isIdle()) {
+      // Let other requests to the share go first, and carry on once they're done.
+      if (!mWaitingForIdle) {
+        mWaitingForIdle = true;
+        mQueue.addIdleHandler(mIdleHandler);
+      }
+      return;
+    }
+
+    final long first = mNextSequentialOffset / BLOCK_SIZE;
+    for (long index = first; index <= mPrefetchedUpTo && index <= mEndOfFileBlock; ++index) {
+      if (!mBlocks.containsKey(index)) {
+        try {
+          if (loadBlock(index, true) == null) {
+            // Other files use up the memory budget. Reads will load blocks on demand.
+            return;
+          }
+        } catch (IOException e) {
+          // The read that actually needs this block will report the error.
+          Log.w(TAG, "Failed to prefetch block " + index, e);
+          return;
+        }
+
+        // One block per message so that other requests can get in between.
+        mHandler.post(mPrefetchRunnable);
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return The block, or {@code null} if there's no memory for it.
+   */
+  private Block getBlock(long index) throws IOException {
+    Block block = mBlocks.get(index);
+    if (block != null) {
+      ++mHits;
+      return block;
+    }
+
+    ++mMisses;
+    return loadBlock(index, false);
+  }
+
+  /**
+   * @return The loaded block, or {@code null} if there's no memory for it.
+   */
+  private Block loadBlock(long index, boolean prefetch) throws IOException {
+    final byte[] data = obtainArray(prefetch);
+    if (data == null) {
+      return null;
+    }
+    int length = 0;
+    try {
+      mFile.seek(index * BLOCK_SIZE);
+      int readSize;
+      while (length < BLOCK_SIZE
+          && (readSize = mFile.read(data, length, BLOCK_SIZE - length)) > 0) {
+        length += readSize;
+      }
+    } catch (IOException e) {
+      mFreeArrays.push(data);
+      throw e;
+    }
+
+    if (length < BLOCK_SIZE) {
+      mEndOfFileBlock = index;
+    }
+
+    final Block block = new Block(data, length);
+    mBlocks.put(index, block);
+    return block;
+  }
+
+  private byte[] obtainArray(boolean prefetch) {
+    final byte[] array = mFreeArrays.poll();
+    if (array != null) {
+      return array;
+    }
+    if (reserveBlock()) {
+      return new byte[BLOCK_SIZE];
+    }
+    if (prefetch) {
+      return null;
+    }
+
+    // Reads take this file's least recently used block instead.
+    final Iterator<Block> eldest = mBlocks.values().iterator();
+    if (eldest.hasNext()) {
+      final byte[] data = eldest.next().mData;
+      eldest.remove();
+      return data;
+    }
+    return null;
+  }
+
+  private int readDirect(long position, byte[] data, int offset, int size) throws IOException {
+    mFile.seek(position);
+    int total = 0;
+    int readSize;
+    while (total < size && (readSize = mFile.read(data, offset + total, size - total)) > 0) {
+      total += readSize;
+    }
+    return total;
+  }
+
+  private static boolean reserveBlock() {
+    int total;
+    do {
+      total = sTotalBlocks.get();
+      if (total >= MAX_TOTAL_BLOCKS) {
+        return false;
+      }
+    } while (!sTotalBlocks.compareAndSet(total, total + 1));
+    return true;
+  }
+
+  private static void releaseBlocks(int count) {
+    sTotalBlocks.addAndGet(-count);
+  }
+
+  private void recycle(Block block) {
+    if (!mClosed && mFreeArrays.size() < MAX_PREFETCH_BLOCKS) {
+      mFreeArrays.push(block.mData);
+    } else {
+      // Leave the array to the GC.
+      releaseBlocks(1);
+    }
+  }
+
+  private static class Block {
+    private final byte[] mData;
+    private final int mLength;
+
+    private Block(byte[] data, int length) {
+      mData = data;
+      mLength = length;
+    }
+  }
+}
@@ -23,22 +23,25 @@ import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.AutoCloseOutputStream;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import com.google.android.sambadocumentsprovider.nativefacade.ResumableSmbFile;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbFile;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class ReadFileTask extends AsyncTask<Void, Void, Void> {
 
   private static final String TAG = "ReadFileTask";
 
+  // Each read is one SMB request, so read in large chunks.
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
   private final String mUri;
   private final SmbClient mClient;
   private final ParcelFileDescriptor mPfd;
   private final ByteBufferPool mBufferPool;
 
-  private ByteBuffer mBuffer;
-
   ReadFileTask(String uri, SmbClient client, ParcelFileDescriptor pfd,
       ByteBufferPool bufferPool) {
     mUri = uri;
@@ -47,21 +50,22 @@ public class ReadFileTask extends AsyncTask<Void, Void, Void> {
     mBufferPool = bufferPool;
   }
 
-  @Override
-  public void onPreExecute() {
-    mBuffer = mBufferPool.obtainBuffer();
-  }
-
   @Override
   public Void doInBackground(Void... args) {
+    // Obtain the buffer here rather than on the main thread, as the pool may wait for one.
+    final ByteBuffer buffer = mBufferPool.obtainBuffer(BUFFER_SIZE);
     try (final AutoCloseOutputStream os = new AutoCloseOutputStream(mPfd);
-        final SmbFile file = mClient.openFile(mUri, "r")) {
+        final SmbFile file = new ResumableSmbFile(mClient, mUri, "r")) {
+      // Write the direct buffer to the pipe through a channel so that the data isn't copied to
+      // the Java heap first.
+      final FileChannel channel = os.getChannel();
       int size;
-      byte[] buf = new byte[mBuffer.capacity()];
-      while ((size = file.read(mBuffer, Integer.MAX_VALUE)) > 0) {
-        mBuffer.get(buf, 0, size);
-        os.write(buf, 0, size);
-        mBuffer.clear();
+      while ((size = file.read(buffer, Integer.MAX_VALUE)) > 0) {
+        buffer.limit(size);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        buffer.clear();
       }
     } catch (IOException e) {
       Log.e(TAG, "Failed to read file.", e);
@@ -71,14 +75,10 @@ public class ReadFileTask extends AsyncTask<Void, Void, Void> {
       } catch (IOException exc) {
         Log.e(TAG, "Can't even close PFD with error.", exc);
       }
+    } finally {
+      mBufferPool.recycleBuffer(buffer);
     }
 
     return null;
   }
-
-  @Override
-  public void onPostExecute(Void arg) {
-    mBufferPool.recycleBuffer(mBuffer);
-    mBuffer = null;
-  }
 }
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.provider;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.sambadocumentsprovider.BuildConfig;
+import com.google.android.sambadocumentsprovider.base.DirectoryEntry;
+import com.google.android.sambadocumentsprovider.document.DocumentMetadata;
+import com.google.android.sambadocumentsprovider.nativefacade.DirectoryEntryBatch;
+import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
+import com.google.android.sambadocumentsprovider.nativefacade.SmbDir;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deletes a folder and everything in it. A folder is removed as soon as the last of its children
+ * is gone.
+ *
+ * Folders are listed and files are unlinked on the shared helper executor, with at most
+ * {@link #PARALLELISM} of them running at a time and the rest queued here. Requests to the share
+ * still go through its worker one at a time, so this only keeps the worker busy while the next
+ * request is prepared, and leaves the other helper threads to other work.
+ *
+ * Deleted documents are reported to the {@link Listener} in batches, so that progress can be
+ * followed without a callback per document.
+ */
+class RecursiveDeleter {
+
+  private static final String TAG = "RecursiveDeleter";
+
+  private static final int PARALLELISM = 2;
+  private static final int BATCH_SIZE = 128;
+
+  interface Listener {
+    /**
+     * Called on a worker thread with documents that no longer exist on the server.
+     *
+     * @param deletedCount Number of documents deleted so far.
+     * @param foundCount Number of documents found so far. Grows while folders are listed.
+     */
+    void onDeleted(List<Uri> uris, int deletedCount, int foundCount);
+  }
+
+  private final SmbClient mClient;
+  private final Uri mRootUri;
+  private final Listener mListener;
+  private final Executor mExecutor;
+
+  // Guarded by itself. Work that waits for one of the PARALLELISM slots.
+  private final Deque<Runnable> mQueued = new ArrayDeque<>();
+  private int mRunning;
+
+  private final CountDownLatch mDone = new CountDownLatch(1);
+  private final AtomicReference<IOException> mFailure = new AtomicReference<>();
+  private volatile boolean mCancelled;
+
+  private final AtomicInteger mFoundCount = new AtomicInteger(1);
+  private int mDeletedCount;
+  private List<Uri> mBatch = new ArrayList<>(BATCH_SIZE);
+
+  RecursiveDeleter(SmbClient client, Executor executor, Uri rootUri, Listener listener) {
+    mClient = client;
+    mExecutor = executor;
+    mRootUri = rootUri;
+    mListener = listener;
+  }
+
+  Uri getRootUri() {
+    return mRootUri;
+  }
+
+  /**
+   * Deletes everything and blocks until it's done, failed or was cancelled. Can only be called
+   * once.
+   */
+  void run() throws IOException {
+    submitList(new Folder(mRootUri, null));
+    try {
+      mDone.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      cancel();
+    }
+
+    // Let the work that is still running finish. What's queued is dropped.
+    synchronized (mQueued) {
+      mQueued.clear();
+      boolean interrupted = false;
+      while (mRunning > 0) {
+        if (BuildConfig.DEBUG) Log.d(TAG, "Waiting for deletions in " + mRootUri + " to stop.");
+        try {
+          mQueued.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+
+    if (mFailure.get() != null) {
+      throw mFailure.get();
+    }
+    if (mCancelled) {
+      throw new InterruptedIOException("Deletion of " + mRootUri + " was cancelled.");
+    }
+  }
+
+  /**
+   * Stops deleting. Documents that are already gone are still reported.
+   */
+  void cancel() {
+    mCancelled = true;
+    mDone.countDown();
+  }
+
+  private boolean isStopped() {
+    return mCancelled || mFailure.get() != null;
+  }
+
+  private void submitList(final Folder folder) {
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        if (isStopped()) {
+          return;
+        }
+        try {
+          list(folder);
+        } catch (IOException e) {
+          fail(e);
+        } catch (RuntimeException e) {
+          fail(new IOException(e));
+        }
+      }
+    });
+  }
+
+  private void submitUnlink(final Uri uri, final Folder parent) {
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        if (isStopped()) {
+          return;
+        }
+        try {
+          try {
+            mClient.unlink(uri.toString());
+          } catch (FileNotFoundException e) {
+            Log.i(TAG, uri + " is already gone.");
+          }
+          onDeleted(uri);
+          onChildDeleted(parent);
+        } catch (IOException e) {
+          fail(e);
+        } catch (RuntimeException e) {
+          fail(new IOException(e));
+        }
+      }
+    });
+  }
+
+  private void submit(Runnable work) {
+    synchronized (mQueued) {
+      if (isStopped()) {
+        return;
+      }
+      if (mRunning >= PARALLELISM) {
+        mQueued.add(work);
+        return;
+      }
+      ++mRunning;
+    }
+    mExecutor.execute(new Slot(work));
+  }
+
+  private void list(Folder folder) throws IOException {
+    try (final SmbDir dir = mClient.openDir(folder.mUri.toString())) {
+      DirectoryEntryBatch batch;
+      while (!isStopped() && (batch = dir.readDirBatch(false)) != null) {
+        for (DirectoryEntry entry : batch) {
+          final Uri childUri = DocumentMetadata.buildChildUri(folder.mUri, entry);
+          if (childUri == null) {
+            continue;
+          }
+
+          folder.mPending.incrementAndGet();
+          mFoundCount.incrementAndGet();
+          if (entry.getType() == DirectoryEntry.DIR) {
+            submitList(new Folder(childUri, folder));
+          } else {
+            submitUnlink(childUri, folder);
+          }
+        }
+      }
+    }
+
+    // The listing is done, so the folder may be empty by now.
+    onChildDeleted(folder);
+  }
+
+  /**
+   * Removes the folder once its last child is gone, and walks up the tree as long as that empties
+   * the parent too.
+   */
+  private void onChildDeleted(@Nullable Folder folder) throws IOException {
+    while (folder != null && folder.mPending.decrementAndGet() == 0) {
+      if (isStopped()) {
+        return;
+      }
+      mClient.rmdir(folder.mUri.toString());
+      onDeleted(folder.mUri);
+
+      if (folder.mParent == null) {
+        mDone.countDown();
+      }
+      folder = folder.mParent;
+    }
+  }
+
+  private void onDeleted(Uri uri) {
+    List<Uri> full = null;
+    int deletedCount;
+    synchronized (this) {
+      mBatch.add(uri);
+      deletedCount = ++mDeletedCount;
+      if (mBatch.size() >= BATCH_SIZE) {
+        full = mBatch;
+        mBatch = new ArrayList<>(BATCH_SIZE);
+      }
+    }
+
+    if (full != null) {
+      mListener.onDeleted(full, deletedCount, mFoundCount.get());
+    }
+  }
+
+  private void flush() {
+    List<Uri> rest;
+    int deletedCount;
+    synchronized (this) {
+      rest = mBatch;
+      deletedCount = mDeletedCount;
+      mBatch = new ArrayList<>(0);
+    }
+
+    if (!rest.isEmpty()) {
+      mListener.onDeleted(rest, deletedCount, mFoundCount.get());
+    }
+  }
+
+  private void fail(IOException e) {
+    if (mFailure.compareAndSet(null, e)) {
+      Log.e(TAG, "Failed to delete " + mRootUri, e);
+    }
+    mDone.countDown();
+  }
+
+  /**
+   * Runs work in one of the PARALLELISM slots, and then whatever is queued next in the same slot.
+   */
+  private class Slot implements Runnable {
+    private Runnable mWork;
+
+    private Slot(Runnable work) {
+      mWork = work;
+    }
+
+    @Override
+    public void run() {
+      while (mWork != null) {
+        mWork.run();
+        synchronized (mQueued) {
+          mWork = mQueued.poll();
+          if (mWork == null) {
+            --mRunning;
+            mQueued.notifyAll();
+          }
+        }
+      }
+    }
+  }
+
+  private static class Folder {
+    private final Uri mUri;
+    private final @Nullable Folder mParent;
+
+    // One for the listing of the folder itself, plus one for each child that isn't deleted yet.
+    private final AtomicInteger mPending = new AtomicInteger(1);
+
+    private Folder(Uri uri, @Nullable Folder parent) {
+      mUri = uri;
+      mParent = parent;
+    }
+  }
+}
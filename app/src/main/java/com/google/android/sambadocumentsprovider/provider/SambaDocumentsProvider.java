@@ -25,6 +25,7 @@ import static com.google.android.sambadocumentsprovider.base.DocumentIdHelper.to
 import android.app.AuthenticationRequiredException;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.UriPermission;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
@@ -39,6 +40,8 @@ import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.util.Log;
 import com.google.android.sambadocumentsprovider.BuildConfig;
 import com.google.android.sambadocumentsprovider.R;
@@ -50,6 +53,7 @@ import com.google.android.sambadocumentsprovider.auth.AuthActivity;
 import com.google.android.sambadocumentsprovider.base.AuthFailedException;
 import com.google.android.sambadocumentsprovider.base.DirectoryEntry;
 import com.google.android.sambadocumentsprovider.base.DocumentCursor;
+import com.google.android.sambadocumentsprovider.base.DocumentPath;
 import com.google.android.sambadocumentsprovider.browsing.NetworkBrowser;
 import com.google.android.sambadocumentsprovider.cache.CacheResult;
 import com.google.android.sambadocumentsprovider.cache.DocumentCache;
@@ -58,15 +62,26 @@ import com.google.android.sambadocumentsprovider.document.LoadChildrenTask;
 import com.google.android.sambadocumentsprovider.base.OnTaskFinishedCallback;
 import com.google.android.sambadocumentsprovider.document.LoadDocumentTask;
 import com.google.android.sambadocumentsprovider.document.LoadStatTask;
+import com.google.android.sambadocumentsprovider.nativefacade.DirectoryWatcher;
+import com.google.android.sambadocumentsprovider.nativefacade.ResumableSmbFile;
+import com.google.android.sambadocumentsprovider.nativefacade.SmbFile;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbFacade;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SambaDocumentsProvider extends DocumentsProvider {
 
@@ -92,6 +107,10 @@ public class SambaDocumentsProvider extends DocumentsProvider {
       Document.COLUMN_ICON
   };
 
+  private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+  private static final long COPY_CHUNK_SIZE = 16 * 1024 * 1024;
+  private static final int MAX_COPY_NAME_ATTEMPTS = 32;
+
   private final OnTaskFinishedCallback<Uri> mLoadDocumentCallback =
       new OnTaskFinishedCallback<Uri>() {
         @Override
@@ -105,6 +124,9 @@ public class SambaDocumentsProvider extends DocumentsProvider {
         @Override
         public void onTaskFinished(@Status int status, DocumentMetadata metadata,
             Exception exception) {
+          if (status == FAILED && exception != null) {
+            mCache.put(metadata.getUri(), exception);
+          }
           // Notify remote side that we get the list even though we don't have the stat yet.
           // If it failed we still should notify the remote side that the loading failed.
           getContext().getContentResolver().notifyChange(
@@ -129,20 +151,74 @@ public class SambaDocumentsProvider extends DocumentsProvider {
         }
       };
 
+  private final DirectoryWatcher.Listener mDirectoryChangeListener =
+      new DirectoryWatcher.Listener() {
+        @Override
+        public void onChanged(String dirUri, int action, String name) {
+          final Uri parentUri = Uri.parse(dirUri);
+          final Uri uri = DocumentMetadata.buildChildUri(parentUri, name);
+          final Uri notifyUri = toNotifyUri(parentUri);
+          if (BuildConfig.DEBUG) Log.d(TAG, "Change " + action + " of " + uri);
+
+          switch (action) {
+            case DirectoryWatcher.ACTION_REMOVED:
+            case DirectoryWatcher.ACTION_OLD_NAME:
+              mCache.remove(uri);
+              getContext().getContentResolver().notifyChange(notifyUri, null, false);
+              break;
+            case DirectoryWatcher.ACTION_MODIFIED:
+              try (final CacheResult result = mCache.get(uri)) {
+                if (result.getState() != CacheResult.CACHE_MISS
+                    && Document.MIME_TYPE_DIR.equals(result.getItem().getMimeType())) {
+                  // Only the folder's own times changed. Its children are revalidated when
+                  // they're listed.
+                  break;
+                }
+              }
+              // Fall through.
+            default:
+              // Reload only the entry that changed, the rest of the listing is still valid.
+              final LoadDocumentTask task = new LoadDocumentTask(uri, mClient, mCache,
+                  new OnTaskFinishedCallback<Uri>() {
+                    @Override
+                    public void onTaskFinished(
+                        @Status int status, @Nullable Uri item, Exception exception) {
+                      getContext().getContentResolver().notifyChange(notifyUri, null, false);
+                    }
+                  });
+              mTaskManager.runTask(uri, task);
+          }
+        }
+      };
+
   private final MountedShareChangeListener mShareChangeListener = new MountedShareChangeListener() {
     @Override
     public void onMountedServerChange() {
       final Uri rootsUri = DocumentsContract.buildRootsUri(AUTHORITY);
       final ContentResolver resolver = getContext().getContentResolver();
       resolver.notifyChange(rootsUri, null, false);
+
+      // Stop deleting in shares that were just unmounted.
+      for (RecursiveDeleter deleter : mDeleters) {
+        Uri shareUri = deleter.getRootUri();
+        while (shareUri.getPathSegments().size() > 1) {
+          shareUri = DocumentMetadata.buildParentUri(shareUri);
+        }
+        if (!mShareManager.isShareMounted(shareUri.toString())) {
+          deleter.cancel();
+        }
+      }
     }
   };
 
   private ShareManager mShareManager;
   private SmbFacade mClient;
   private ByteBufferPool mBufferPool;
+  private final Set<RecursiveDeleter> mDeleters =
+      Collections.newSetFromMap(new ConcurrentHashMap<RecursiveDeleter, Boolean>());
   private DocumentCache mCache;
   private TaskManager mTaskManager;
+  private DirectoryWatcher mDirectoryWatcher;
   private StorageManager mStorageManager;
 
   private List<String> mBrowsingStorage;
@@ -155,6 +231,8 @@ public class SambaDocumentsProvider extends DocumentsProvider {
     mClient = SambaProviderApplication.getSambaClient(context);
     mCache = SambaProviderApplication.getDocumentCache(context);
     mTaskManager = SambaProviderApplication.getTaskManager(context);
+    mDirectoryWatcher =
+        SambaProviderApplication.createDirectoryWatcher(context, mDirectoryChangeListener);
     mBufferPool = new ByteBufferPool();
     mShareManager = SambaProviderApplication.getServerManager(context);
     mShareManager.addListener(mShareChangeListener);
@@ -170,6 +248,7 @@ public class SambaDocumentsProvider extends DocumentsProvider {
 
     MatrixCursor cursor = new MatrixCursor(projection);
 
+    final List<Uri> roots = new ArrayList<>();
     for (String uri : mShareManager) {
       if (!mShareManager.isShareMounted(uri)) {
         continue;
@@ -177,6 +256,7 @@ public class SambaDocumentsProvider extends DocumentsProvider {
 
       final String name;
       final Uri parsedUri = Uri.parse(uri);
+      roots.add(parsedUri);
       try(CacheResult result = mCache.get(parsedUri)) {
         final DocumentMetadata metadata;
         if (result.getState() == CacheResult.CACHE_MISS) {
@@ -198,6 +278,7 @@ public class SambaDocumentsProvider extends DocumentsProvider {
       }
 
     }
+    mCache.setPinnedRoots(roots);
     return cursor;
   }
 
@@ -208,6 +289,9 @@ public class SambaDocumentsProvider extends DocumentsProvider {
     if (!mShareManager.unmountServer(rootId)) {
       throw new IllegalStateException("Failed to eject root: " + rootId);
     }
+
+    // Nothing in the share is shown anymore.
+    mCache.removeSubtree(toUri(rootId));
   }
 
   @Override
@@ -233,8 +317,15 @@ public class SambaDocumentsProvider extends DocumentsProvider {
           if (mShareManager.containsShare(uri.toString())) {
             metadata = DocumentMetadata.createShare(uri);
           } else {
-            // There is no cache for this URI. Fetch it from remote side.
-            metadata = DocumentMetadata.fromUri(uri, mClient);
+            // There is no cache for this URI. Fetch it from remote side unless that failed
+            // recently.
+            mCache.throwIfFailedRecently(uri);
+            try {
+              metadata = DocumentMetadata.fromUri(uri, mClient);
+            } catch (Exception e) {
+              mCache.put(uri, e);
+              throw e;
+            }
           }
           mCache.put(metadata);
         } else {
@@ -277,13 +368,12 @@ public class SambaDocumentsProvider extends DocumentsProvider {
         final DocumentCursor cursor = new DocumentCursor(projection);
 
         if (result.getState() == CacheResult.CACHE_MISS) {
-          // Last loading failed... Just feed the bitter fruit.
-          mCache.throwLastExceptionIfAny(uri);
+          // Last loading failed recently... Just feed the bitter fruit.
+          mCache.throwIfFailedRecently(uri);
 
           final LoadDocumentTask task =
               new LoadDocumentTask(uri, mClient, mCache, mLoadDocumentCallback);
-          mTaskManager.runTask(uri, task);
-          cursor.setLoadingTask(task);
+          cursor.setLoadingTask(mTaskManager.runTask(uri, task));
 
           isLoading = true;
         } else { // At least we have something in cache.
@@ -296,11 +386,14 @@ public class SambaDocumentsProvider extends DocumentsProvider {
           metadata.throwLastChildUpdateExceptionIfAny();
 
           final Map<Uri, DocumentMetadata> childrenMap = metadata.getChildren();
-          if (childrenMap == null || result.getState() == CacheResult.CACHE_EXPIRED) {
+          // Stale listings are only reloaded here if the share wants them revalidated. Otherwise
+          // they're served until the cache stops returning them. Nothing is reloaded while the
+          // folder or its server is known to be failing.
+          if ((childrenMap == null || (result.getState() == CacheResult.CACHE_EXPIRED
+              && mCache.shouldRevalidate(metadata))) && !mCache.hasFailedRecently(uri)) {
             final LoadChildrenTask task =
                 new LoadChildrenTask(metadata, mClient, mCache, mLoadChildrenCallback);
-            mTaskManager.runTask(uri, task);
-            cursor.setLoadingTask(task);
+            cursor.setLoadingTask(mTaskManager.runTask(uri, task));
 
             isLoading = true;
           }
@@ -317,15 +410,24 @@ public class SambaDocumentsProvider extends DocumentsProvider {
             }
             if (!isLoading && !docMap.isEmpty()) {
               LoadStatTask task = new LoadStatTask(docMap, mClient,
+                  mTaskManager.getHelperExecutor(),
+                  new LoadStatTask.OnBatchLoadedCallback() {
+                    @Override
+                    public void onBatchLoaded() {
+                      getContext().getContentResolver().notifyChange(notifyUri, null, false);
+                    }
+                  },
                   new OnTaskFinishedCallback<Map<Uri, DocumentMetadata>>() {
                     @Override
                     public void onTaskFinished(
                         @Status int status, Map<Uri, DocumentMetadata> item, Exception exception) {
+                      if (status == SUCCEEDED) {
+                        mCache.persistChildren(metadata);
+                      }
                       getContext().getContentResolver().notifyChange(notifyUri, null, false);
                     }
                   });
-              mTaskManager.runTask(uri, task);
-              cursor.setLoadingTask(task);
+              cursor.setLoadingTask(mTaskManager.runTask(uri, task));
 
               isLoading = true;
             }
@@ -334,6 +436,21 @@ public class SambaDocumentsProvider extends DocumentsProvider {
         extra.putBoolean(DocumentsContract.EXTRA_LOADING, isLoading);
         cursor.setExtras(extra);
         cursor.setNotificationUri(getContext().getContentResolver(), notifyUri);
+
+        // Keep the folder in cache and up to date for as long as someone is looking at it.
+        // Servers and workgroups can't be watched.
+        mCache.pin(uri);
+        final boolean watching =
+            !uri.getPathSegments().isEmpty() && mDirectoryWatcher.watch(uri.toString());
+        cursor.setOnCloseListener(new DocumentCursor.OnCloseListener() {
+          @Override
+          public void onClose() {
+            mCache.unpin(uri);
+            if (watching) {
+              mDirectoryWatcher.unwatch(uri.toString());
+            }
+          }
+        });
         return cursor;
       }
     } catch (AuthFailedException e) {
@@ -382,6 +499,10 @@ public class SambaDocumentsProvider extends DocumentsProvider {
           flag |= Document.FLAG_SUPPORTS_RENAME;
           flag |= Document.FLAG_SUPPORTS_REMOVE;
           flag |= Document.FLAG_SUPPORTS_MOVE;
+          if (!Document.MIME_TYPE_DIR.equals(metadata.getMimeType())) {
+            // Folders are copied by the framework one file at a time.
+            flag |= Document.FLAG_SUPPORTS_COPY;
+          }
           row[i] = flag;
           break;
         case Document.COLUMN_MIME_TYPE:
@@ -461,19 +582,10 @@ public class SambaDocumentsProvider extends DocumentsProvider {
 
       mClient.rename(uri.toString(), newUri.toString());
 
-      revokeDocumentPermission(documentId);
-
       getContext().getContentResolver().notifyChange(toNotifyUri(parentUri), null, false);
 
-      // Update cache
-      try (CacheResult result = mCache.get(uri)) {
-        if (result.getState() != CacheResult.CACHE_MISS) {
-          DocumentMetadata metadata = result.getItem();
-          metadata.rename(newUri);
-          mCache.remove(uri);
-          mCache.put(metadata);
-        }
-      }
+      // Update cache. Everything cached under a folder moves along with it.
+      revokeSubtreePermission(uri, mCache.renameSubtree(uri, newUri));
 
       return toDocumentId(newUri);
     } catch (FileNotFoundException e) {
@@ -511,21 +623,72 @@ public class SambaDocumentsProvider extends DocumentsProvider {
   }
 
   private void recursiveDeleteFolder(DocumentMetadata metadata) throws IOException {
-    // Fetch the latest children just in case our cache is out of date.
-    metadata.loadChildren(mClient);
-    for (DocumentMetadata child : metadata.getChildren().values()) {
-      if (Document.MIME_TYPE_DIR.equals(child.getMimeType())) {
-        recursiveDeleteFolder(child);
-      } else {
-        deleteFile(child);
+    final RecursiveDeleter deleter =
+        new RecursiveDeleter(mClient, mTaskManager.getHelperExecutor(), metadata.getUri(),
+            new RecursiveDeleter.Listener() {
+              @Override
+              public void onDeleted(List<Uri> uris, int deletedCount, int foundCount) {
+                if (BuildConfig.DEBUG) {
+                  Log.d(TAG, "Deleted " + deletedCount + " of " + foundCount + " documents.");
+                }
+              }
+            });
+
+    mDeleters.add(deleter);
+    try {
+      deleter.run();
+    } finally {
+      mDeleters.remove(deleter);
+
+      // Even if it failed half way, what's left of the folder is no longer what's cached. Grants
+      // are revoked in one go rather than for each deleted document.
+      final Uri uri = metadata.getUri();
+      revokeSubtreePermission(uri, mCache.removeSubtree(uri));
+    }
+  }
+
+  /**
+   * Revokes grants of a folder and of its descendants after they were deleted or moved away. The
+   * cache only knows the descendants that were listed lately, so descendants with persisted grants
+   * are looked up as well.
+   */
+  private void revokeSubtreePermission(Uri uri, List<Uri> cachedUris) {
+    final Set<String> documentIds = new HashSet<>();
+    documentIds.add(toDocumentId(uri));
+    for (Uri cachedUri : cachedUris) {
+      documentIds.add(toDocumentId(cachedUri));
+    }
+
+    final DocumentPath path = DocumentPath.fromUri(uri);
+    for (UriPermission permission
+        : getContext().getContentResolver().getOutgoingPersistedUriPermissions()) {
+      final String documentId = getGrantedDocumentId(permission.getUri());
+      if (documentId != null && toPath(documentId).isUnder(path)) {
+        documentIds.add(documentId);
       }
     }
 
-    final Uri uri = metadata.getUri();
-    mClient.rmdir(uri.toString());
-    mCache.remove(uri);
+    for (String documentId : documentIds) {
+      revokeDocumentPermission(documentId);
+    }
+  }
 
-    revokeDocumentPermission(toDocumentId(uri));
+  private static @Nullable String getGrantedDocumentId(Uri grantedUri) {
+    if (!AUTHORITY.equals(grantedUri.getAuthority())) {
+      return null;
+    }
+    final List<String> segments = grantedUri.getPathSegments();
+    if (segments.size() == 2 && "document".equals(segments.get(0))) {
+      return DocumentsContract.getDocumentId(grantedUri);
+    }
+    if (segments.size() >= 2 && "tree".equals(segments.get(0))) {
+      return DocumentsContract.getTreeDocumentId(grantedUri);
+    }
+    return null;
+  }
+
+  private static DocumentPath toPath(String documentId) {
+    return DocumentPath.fromDocumentId(toUriString(documentId));
   }
 
   private void deleteFile(DocumentMetadata metadata) throws IOException {
@@ -566,22 +729,72 @@ public class SambaDocumentsProvider extends DocumentsProvider {
           .buildChildUri(targetParentUri, uri.getLastPathSegment());
       mClient.rename(uri.toString(), targetUri.toString());
 
-      revokeDocumentPermission(sourceDocumentId);
-
       getContext().getContentResolver()
           .notifyChange(toNotifyUri(DocumentMetadata.buildParentUri(uri)), null, false);
       getContext().getContentResolver().notifyChange(toNotifyUri(targetParentUri), null, false);
 
-      try (CacheResult result = mCache.get(uri)) {
-        if (result.getState() != CacheResult.CACHE_MISS) {
-          final DocumentMetadata metadata = result.getItem();
-          metadata.rename(targetUri);
+      revokeSubtreePermission(uri, mCache.renameSubtree(uri, targetUri));
 
-          mCache.remove(uri);
-          mCache.put(metadata);
+      return toDocumentId(targetUri);
+    } catch(FileNotFoundException e) {
+      throw e;
+    } catch(IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public String copyDocument(String sourceDocumentId, String targetParentDocumentId)
+      throws FileNotFoundException {
+    try {
+      final Uri uri = toUri(sourceDocumentId);
+      final Uri targetParentUri = toUri(targetParentDocumentId);
+
+      if (uri.getPathSegments().isEmpty() || targetParentUri.getPathSegments().isEmpty()) {
+        throw new UnsupportedOperationException("Not support copying a share/workgroup/server.");
+      }
+
+      final DocumentMetadata source = DocumentMetadata.fromUri(uri, mClient);
+      if (Document.MIME_TYPE_DIR.equals(source.getMimeType())) {
+        throw new UnsupportedOperationException("Folders are copied one file at a time.");
+      }
+
+      // Copying into the same folder makes a duplicate next to the source.
+      final Uri targetUri = createCopyTarget(targetParentUri, source.getDisplayName());
+      try {
+        boolean copied = false;
+        if (Objects.equals(uri.getAuthority(), targetParentUri.getAuthority())) {
+          // The server copies the data itself, so nothing goes over the network twice.
+          try {
+            serverCopy(uri.toString(), targetUri.toString());
+            copied = true;
+          } catch (FileNotFoundException e) {
+            throw e;
+          } catch (IOException e) {
+            if (!isCopyUnsupported(e)) {
+              throw e;
+            }
+            Log.i(TAG, "Server can't copy " + uri + " to " + targetUri + ". Streaming it instead.");
+          }
+        }
+        if (!copied) {
+          streamCopy(uri.toString(), targetUri.toString());
+        }
+      } catch (IOException | RuntimeException e) {
+        // Don't leave a partial copy behind.
+        try {
+          mClient.unlink(targetUri.toString());
+        } catch (IOException | RuntimeException unlinkError) {
+          Log.w(TAG, "Failed to delete the partial copy at " + targetUri, unlinkError);
         }
+        throw e;
       }
 
+      getContext().getContentResolver().notifyChange(toNotifyUri(targetParentUri), null, false);
+
+      mCache.remove(targetUri);
+      mCache.put(DocumentMetadata.fromUri(targetUri, mClient));
+
       return toDocumentId(targetUri);
     } catch(FileNotFoundException e) {
       throw e;
@@ -590,6 +803,84 @@ public class SambaDocumentsProvider extends DocumentsProvider {
     }
   }
 
+  /**
+   * Creates an empty file to copy into, named after the source, or "name (n).ext" if that name
+   * is taken. Existing files are never overwritten.
+   */
+  private Uri createCopyTarget(Uri parentUri, String displayName) throws IOException {
+    for (int attempt = 0; attempt < MAX_COPY_NAME_ATTEMPTS; ++attempt) {
+      final Uri uri = DocumentMetadata.buildChildUri(parentUri,
+          (attempt == 0) ? displayName : buildNumberedName(displayName, attempt));
+      try {
+        mClient.openFile(uri.toString(), "wx").close();
+        return uri;
+      } catch (IOException e) {
+        if (getErrno(e) != OsConstants.EEXIST) {
+          throw e;
+        }
+      }
+    }
+    throw new IOException("No free name to copy " + displayName + " into " + parentUri);
+  }
+
+  private static String buildNumberedName(String displayName, int number) {
+    final int dot = displayName.lastIndexOf('.');
+    if (dot <= 0) {
+      return displayName + " (" + number + ")";
+    }
+    return displayName.substring(0, dot) + " (" + number + ")" + displayName.substring(dot);
+  }
+
+  private void serverCopy(String uri, String targetUri) throws IOException {
+    // Each chunk is a separate request, so other requests to the share get through in between.
+    // A chunk may be copied only partially, so keep going until the whole source is copied.
+    final long size = mClient.stat(uri).st_size;
+    long offset = 0;
+    while (offset < size) {
+      final long copied =
+          mClient.copy(uri, targetUri, offset, Math.min(COPY_CHUNK_SIZE, size - offset));
+      if (copied <= 0) {
+        throw new IOException(
+            "Copy of " + uri + " stopped at " + offset + " of " + size + " bytes.");
+      }
+      offset += copied;
+    }
+  }
+
+  private void streamCopy(String uri, String targetUri) throws IOException {
+    final ByteBuffer buffer = mBufferPool.obtainBuffer(COPY_BUFFER_SIZE);
+    try (final SmbFile source = new ResumableSmbFile(mClient, uri, "r");
+        final SmbFile target = new ResumableSmbFile(mClient, targetUri, "w")) {
+      int size;
+      while ((size = source.read(buffer, buffer.capacity())) > 0) {
+        target.write(buffer, size);
+      }
+    } finally {
+      mBufferPool.recycleBuffer(buffer);
+    }
+  }
+
+  private static boolean isCopyUnsupported(IOException e) {
+    final int errno = getErrno(e);
+    return errno == OsConstants.EXDEV
+        || errno == OsConstants.ENOTSUP
+        || errno == OsConstants.EOPNOTSUPP
+        || errno == OsConstants.ENOSYS
+        || errno == OsConstants.EINVAL;
+  }
+
+  /**
+   * @return The errno that caused the exception, or 0 if it wasn't caused by an errno.
+   */
+  private static int getErrno(IOException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ErrnoException) {
+        return ((ErrnoException) cause).errno;
+      }
+    }
+    return 0;
+  }
+
   @Override
   public ParcelFileDescriptor openDocument(String documentId, String mode,
       CancellationSignal cancellationSignal) throws FileNotFoundException {
@@ -618,6 +909,12 @@ public class SambaDocumentsProvider extends DocumentsProvider {
     }
   }
 
+  @Override
+  public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    writer.println(mCache);
+    writer.print(mTaskManager.dumpServerStats());
+  }
+
   private ParcelFileDescriptor openDocumentPreO(String uri, String mode) throws IOException {
 
     // Doesn't support complex mode on pre-O devices.
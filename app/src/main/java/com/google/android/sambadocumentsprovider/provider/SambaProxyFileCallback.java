@@ -20,6 +20,7 @@ package com.google.android.sambadocumentsprovider.provider;
 import android.annotation.TargetApi;
 import android.net.Uri;
 import android.os.CancellationSignal;
+import android.os.Handler;
 import android.os.ProxyFileDescriptorCallback;
 import android.support.annotation.Nullable;
 import android.system.ErrnoException;
@@ -32,7 +33,6 @@ import com.google.android.sambadocumentsprovider.nativefacade.SmbFile;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 @TargetApi(26)
 public class SambaProxyFileCallback extends ProxyFileDescriptorCallback {
@@ -40,18 +40,21 @@ public class SambaProxyFileCallback extends ProxyFileDescriptorCallback {
 
   private final String mUri;
   private final SmbFile mFile;
-  private final ByteBufferPool mBufferPool;
+  private final ReadAheadCache mReadAheadCache;
+  private final WriteBehindBuffer mWriteBehindBuffer;
   private final @Nullable OnTaskFinishedCallback<String> mCallback;
 
   public SambaProxyFileCallback(
       String uri,
       SmbFile file,
       ByteBufferPool bufferPool,
+      Handler handler,
       @Nullable OnTaskFinishedCallback<String> callback) {
 
     mUri = uri;
     mFile = file;
-    mBufferPool = bufferPool;
+    mReadAheadCache = new ReadAheadCache(file, handler);
+    mWriteBehindBuffer = new WriteBehindBuffer(file, handler, bufferPool);
     mCallback = callback;
   }
 
@@ -59,6 +62,7 @@ public class SambaProxyFileCallback extends ProxyFileDescriptorCallback {
   public long onGetSize() throws ErrnoException {
     StructStat stat;
     try {
+      mWriteBehindBuffer.flush();
       stat = mFile.fstat();
       return stat.st_size;
     } catch (IOException e) {
@@ -70,23 +74,11 @@ public class SambaProxyFileCallback extends ProxyFileDescriptorCallback {
 
   @Override
   public int onRead(long offset, int size, byte[] data) throws ErrnoException {
-    final ByteBuffer buffer = mBufferPool.obtainBuffer();
     try {
-      mFile.seek(offset);
-
-      int readSize;
-      int total = 0;
-      while (size > total && (readSize = mFile.read(buffer, size - total)) > 0) {
-        buffer.get(data, total, readSize);
-        buffer.clear();
-        total += readSize;
-      }
-
-      return total;
+      mWriteBehindBuffer.flush();
+      return mReadAheadCache.read(offset, size, data);
     } catch (IOException e) {
       throwErrnoException(e);
-    } finally {
-      mBufferPool.recycleBuffer(buffer);
     }
 
     return 0;
@@ -94,35 +86,37 @@ public class SambaProxyFileCallback extends ProxyFileDescriptorCallback {
 
   @Override
   public int onWrite(long offset, int size, byte[] data) throws ErrnoException {
-    int written = 0;
-
-    final ByteBuffer buffer = mBufferPool.obtainBuffer();
+    mReadAheadCache.invalidate();
     try {
-      mFile.seek(offset);
-
-      while (written < size) {
-        int willWrite = Math.min(size - written, buffer.capacity());
-        buffer.put(data, written, willWrite);
-        int res = mFile.write(buffer, willWrite);
-        written += res;
-        buffer.clear();
-      }
+      return mWriteBehindBuffer.write(offset, size, data);
     } catch (IOException e) {
       throwErrnoException(e);
-    } finally {
-      mBufferPool.recycleBuffer(buffer);
     }
 
-    return written;
+    return 0;
   }
 
   @Override
   public void onFsync() throws ErrnoException {
-    // Nothing to do
+    try {
+      mWriteBehindBuffer.flush();
+    } catch (IOException e) {
+      throwErrnoException(e);
+    }
   }
 
   @Override
   public void onRelease() {
+    mReadAheadCache.close();
+
+    IOException writeException = null;
+    try {
+      mWriteBehindBuffer.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to flush buffered writes", e);
+      writeException = e;
+    }
+
     try {
       mFile.close();
     } catch (IOException e) {
@@ -130,7 +124,11 @@ public class SambaProxyFileCallback extends ProxyFileDescriptorCallback {
     }
 
     if (mCallback != null) {
-      mCallback.onTaskFinished(OnTaskFinishedCallback.SUCCEEDED, mUri, null);
+      if (writeException == null) {
+        mCallback.onTaskFinished(OnTaskFinishedCallback.SUCCEEDED, mUri, null);
+      } else {
+        mCallback.onTaskFinished(OnTaskFinishedCallback.FAILED, mUri, writeException);
+      }
     }
   }
 
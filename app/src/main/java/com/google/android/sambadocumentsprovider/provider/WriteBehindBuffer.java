@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.provider;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.sambadocumentsprovider.nativefacade.SmbFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Coalesces contiguous writes to one file into large SMB writes.
+ *
+ * Data is flushed when the buffer is full, when a write isn't contiguous with the buffered data,
+ * shortly after the last write, and on {@link #flush()}. A failure of a background flush is
+ * reported by the next call to {@link #write(long, int, byte[])} or {@link #flush()}.
+ *
+ * Not thread safe. It has to be used on the thread of the handler passed in, which is the thread
+ * that owns the underlying native file.
+ */
+class WriteBehindBuffer {
+
+  private static final String TAG = "WriteBehindBuffer";
+
+  private static final long FLUSH_DELAY_MS = 100;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final SmbFile mFile;
+  private final Handler mHandler;
+  private final ByteBufferPool mBufferPool;
+
+  private ByteBuffer mBuffer;
+  private long mStart;
+  private IOException mPendingException;
+
+  private final Runnable mFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        flushBuffer();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to flush buffered writes.", e);
+        mPendingException = e;
+      }
+    }
+  };
+
+  WriteBehindBuffer(SmbFile file, Handler handler, ByteBufferPool bufferPool) {
+    mFile = file;
+    mHandler = handler;
+    mBufferPool = bufferPool;
+  }
+
+  /**
+   * Buffers the data. It always accepts all of it unless an earlier flush failed.
+   */
+  int write(long offset, int size, byte[] data) throws IOException {
+    throwPendingException();
+
+    if (mBuffer == null) {
+      // This runs on the Samba looper thread, which must not wait for the pool.
+      mBuffer = mBufferPool.obtainBufferNoWait(BUFFER_SIZE);
+    }
+
+    if (isDirty() && offset != mStart + mBuffer.position()) {
+      flushBuffer();
+    }
+    if (!isDirty()) {
+      mStart = offset;
+    }
+
+    int written = 0;
+    while (written < size) {
+      final int count = Math.min(size - written, mBuffer.remaining());
+      mBuffer.put(data, written, count);
+      written += count;
+
+      if (!mBuffer.hasRemaining()) {
+        flushBuffer();
+      }
+    }
+
+    mHandler.removeCallbacks(mFlushRunnable);
+    if (isDirty()) {
+      mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+    }
+    return written;
+  }
+
+  /**
+   * Writes out all buffered data, and throws if this or any earlier flush failed.
+   */
+  void flush() throws IOException {
+    mHandler.removeCallbacks(mFlushRunnable);
+    throwPendingException();
+    flushBuffer();
+  }
+
+  boolean isDirty() {
+    return mBuffer != null && mBuffer.position() > 0;
+  }
+
+  /**
+   * Flushes the remaining data and gives the buffer back to the pool.
+   */
+  void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      if (mBuffer != null) {
+        mBufferPool.recycleBuffer(mBuffer);
+        mBuffer = null;
+      }
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (!isDirty()) {
+      return;
+    }
+
+    try {
+      mFile.seek(mStart);
+      while (mBuffer.position() > 0) {
+        final int written = mFile.write(mBuffer, mBuffer.position());
+        if (written <= 0) {
+          throw new IOException("Failed to write buffered data at " + mStart);
+        }
+        mStart += written;
+
+        // Move whatever wasn't written to the front.
+        mBuffer.flip();
+        mBuffer.position(written);
+        mBuffer.compact();
+      }
+    } catch (IOException e) {
+      // The data can't be written anymore. Drop it so that later writes don't retry it.
+      mBuffer.clear();
+      throw e;
+    }
+  }
+
+  private void throwPendingException() throws IOException {
+    if (mPendingException != null) {
+      final IOException e = mPendingException;
+      mPendingException = null;
+      throw e;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import android.os.ParcelFileDescriptor.AutoCloseInputStream;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import com.google.android.sambadocumentsprovider.base.OnTaskFinishedCallback;
+import com.google.android.sambadocumentsprovider.nativefacade.ResumableSmbFile;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbFile;
 import com.google.android.sambadocumentsprovider.nativefacade.SmbClient;
 import java.io.IOException;
@@ -33,12 +34,14 @@ public class WriteFileTask extends AsyncTask<Void, Void, Void> {
 
   private static final String TAG = "WriteFileTask";
 
+  // Reading from a pipe returns at most the pipe capacity at a time.
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   private final String mUri;
   private final SmbClient mClient;
   private final ParcelFileDescriptor mPfd;
   private final OnTaskFinishedCallback<String> mCallback;
   private final ByteBufferPool mBufferPool;
-  private final ByteBuffer mBuffer;
 
   WriteFileTask(String uri,
       SmbClient service,
@@ -49,21 +52,20 @@ public class WriteFileTask extends AsyncTask<Void, Void, Void> {
     mClient = service;
     mPfd = pfd;
     mCallback = callback;
-
     mBufferPool = bufferPool;
-    mBuffer = mBufferPool.obtainBuffer();
   }
 
   @Override
   public Void doInBackground(Void... args) {
+    final ByteBuffer buffer = mBufferPool.obtainBuffer(BUFFER_SIZE);
     try (final AutoCloseInputStream is = new AutoCloseInputStream(mPfd);
-        final SmbFile file = mClient.openFile(mUri, "w")){
+        final SmbFile file = new ResumableSmbFile(mClient, mUri, "w")){
       int size;
-      byte[] buf = new byte[mBuffer.capacity()];
+      byte[] buf = new byte[buffer.capacity()];
       while ((size = is.read(buf)) > 0) {
-        mBuffer.put(buf, 0, size);
-        file.write(mBuffer, size);
-        mBuffer.clear();
+        buffer.put(buf, 0, size);
+        file.write(buffer, size);
+        buffer.clear();
       }
     } catch (IOException e) {
       Log.e(TAG, "Failed to write file.", e);
@@ -73,6 +75,8 @@ public class WriteFileTask extends AsyncTask<Void, Void, Void> {
       } catch (IOException exc) {
         Log.e(TAG, "Can't even close PFD with error.", exc);
       }
+    } finally {
+      mBufferPool.recycleBuffer(buffer);
     }
 
     return null;
@@ -80,8 +84,6 @@ public class WriteFileTask extends AsyncTask<Void, Void, Void> {
 
   @Override
   public void onPostExecute(Void arg) {
-    mBufferPool.recycleBuffer(mBuffer);
-
     mCallback.onTaskFinished(OnTaskFinishedCallback.SUCCEEDED, mUri, null);
   }
 }
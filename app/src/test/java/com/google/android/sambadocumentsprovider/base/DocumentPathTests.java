@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.base;
+
+import android.net.Uri;
+
+import com.google.android.sambadocumentsprovider.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DocumentPathTests {
+
+  @Test
+  public void fromUri_returnsSameInstanceForSameUri() {
+    final DocumentPath path = path("smb://server/share/a/b");
+
+    assertSame(path, path("smb://server/share/a/b"));
+    assertSame(path, path("smb://server/share/a/b/"));
+    assertSame(path, DocumentPath.fromDocumentId("smb://server/share/a/b"));
+  }
+
+  @Test
+  public void fromUri_buildsParentChain() {
+    final DocumentPath path = path("smb://server/share/a");
+
+    assertSame(path("smb://server/share"), path.getParent());
+    assertSame(path("smb://server"), path.getParent().getParent());
+    assertSame(path("smb://"), path.getParent().getParent().getParent());
+    assertNull(path("smb://").getParent());
+  }
+
+  @Test
+  public void getChild_encodesName() {
+    final DocumentPath child = path("smb://server/share").getChild("a b");
+
+    assertEquals("smb://server/share/a%20b", child.toString());
+    assertEquals("a b", child.getName());
+    assertSame(child, path("smb://server/share/a%20b"));
+  }
+
+  @Test
+  public void toUri_roundTrips() {
+    assertEquals(Uri.parse("smb://server/share/a"), path("smb://server/share/a").toUri());
+    assertEquals("smb://server", path("smb://server").toString());
+  }
+
+  @Test
+  public void isUnder_matchesPathAndDescendantsOnly() {
+    final DocumentPath folder = path("smb://server/share/a");
+
+    assertTrue(folder.isUnder(folder));
+    assertTrue(path("smb://server/share/a/b/c").isUnder(folder));
+    assertFalse(path("smb://server/share/ab").isUnder(folder));
+    assertFalse(path("smb://server/share").isUnder(folder));
+  }
+
+  @Test
+  public void move_replacesAncestor() {
+    final DocumentPath moved = path("smb://server/share/a/b/c")
+        .move(path("smb://server/share/a"), path("smb://server/share/x/y"));
+
+    assertSame(path("smb://server/share/x/y/b/c"), moved);
+  }
+
+  @Test
+  public void move_ofAncestorItselfReturnsTarget() {
+    final DocumentPath target = path("smb://server/share/x");
+
+    assertSame(target, path("smb://server/share/a").move(path("smb://server/share/a"), target));
+  }
+
+  @Test
+  public void move_leavesOtherPathsAlone() {
+    final DocumentPath path = path("smb://server/share/ab/c");
+
+    assertSame(path, path.move(path("smb://server/share/a"), path("smb://server/share/x")));
+  }
+
+  private static DocumentPath path(String uri) {
+    return DocumentPath.fromUri(Uri.parse(uri));
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.base;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTests {
+
+  private static final String KEY = "key";
+  private static final long TIMEOUT_SECONDS = 5;
+
+  private SingleFlight<String, String> mFlight;
+  private ExecutorService mExecutor;
+
+  @Before
+  public void init() {
+    mFlight = new SingleFlight<>();
+    mExecutor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    mExecutor.shutdownNow();
+  }
+
+  @Test
+  public void execute_returnsResult() throws IOException {
+    assertEquals("result", mFlight.execute(KEY, constant("result")));
+    assertEquals(0, mFlight.getSharedCount());
+  }
+
+  @Test
+  public void execute_concurrentCallersShareOneCall() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final Future<String> leader = submit(blocking(release, calls, "shared"));
+    awaitStarted(calls, 1);
+
+    final Future<String> follower = submit(blocking(release, calls, "own"));
+    awaitShared(1);
+    release.countDown();
+
+    assertEquals("shared", leader.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals("shared", follower.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void execute_sharesFailureWithJoinedCallers() throws Exception {
+    final IOException failure = new IOException("failed");
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final Future<String> leader = submit(new SingleFlight.Call<String>() {
+      @Override
+      public String call() throws IOException {
+        calls.incrementAndGet();
+        await(release);
+        throw failure;
+      }
+    });
+    awaitStarted(calls, 1);
+
+    final Future<String> follower = submit(constant("own"));
+    awaitShared(1);
+    release.countDown();
+
+    assertFailedWith(failure, leader);
+    assertFailedWith(failure, follower);
+  }
+
+  @Test
+  public void execute_afterCallFinishedStartsNewCall() throws IOException {
+    mFlight.execute(KEY, constant("first"));
+
+    assertEquals("second", mFlight.execute(KEY, constant("second")));
+    assertEquals(0, mFlight.getSharedCount());
+  }
+
+  @Test
+  public void forget_makesNextCallerStartNewCall() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final Future<String> leader = submit(blocking(release, calls, "stale"));
+    awaitStarted(calls, 1);
+
+    mFlight.forget(KEY);
+
+    assertEquals("fresh", mFlight.execute(KEY, constant("fresh")));
+    release.countDown();
+    assertEquals("stale", leader.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(0, mFlight.getSharedCount());
+  }
+
+  private Future<String> submit(final SingleFlight.Call<String> call) {
+    return mExecutor.submit(new Callable<String>() {
+      @Override
+      public String call() throws IOException {
+        return mFlight.execute(KEY, call);
+      }
+    });
+  }
+
+  private void awaitShared(int count) throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (mFlight.getSharedCount() < count) {
+      assertTrue("Caller didn't join the call in flight.", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static void awaitStarted(AtomicInteger calls, int count) throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (calls.get() < count) {
+      assertTrue("Call didn't start.", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static void assertFailedWith(IOException expected, Future<String> future)
+      throws Exception {
+    try {
+      future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      fail("Expected " + expected);
+    } catch (ExecutionException e) {
+      assertSame(expected, e.getCause());
+    }
+  }
+
+  private static SingleFlight.Call<String> constant(final String result) {
+    return new SingleFlight.Call<String>() {
+      @Override
+      public String call() {
+        return result;
+      }
+    };
+  }
+
+  private static SingleFlight.Call<String> blocking(
+      final CountDownLatch release, final AtomicInteger calls, final String result) {
+    return new SingleFlight.Call<String>() {
+      @Override
+      public String call() throws IOException {
+        calls.incrementAndGet();
+        await(release);
+        return result;
+      }
+    };
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        throw new IOException("Not released in time.");
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}
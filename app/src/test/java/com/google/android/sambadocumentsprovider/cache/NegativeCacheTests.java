@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.cache;
+
+import android.net.Uri;
+
+import com.google.android.sambadocumentsprovider.BuildConfig;
+import com.google.android.sambadocumentsprovider.base.AuthFailedException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Delays are spread by up to 20% either way, so the checks are made just inside and just outside
+ * of that range.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NegativeCacheTests {
+
+  private static final Uri DOCUMENT = Uri.parse("smb://server/share/folder/file");
+  private static final Uri SIBLING = Uri.parse("smb://server/share/folder/other");
+  private static final Uri OTHER_SHARE = Uri.parse("smb://server/other/file");
+
+  private long mNow;
+  private NegativeCache mCache;
+
+  @Before
+  public void init() {
+    mNow = 0;
+    mCache = new NegativeCache() {
+      @Override
+      long now() {
+        return mNow;
+      }
+    };
+  }
+
+  @Test
+  public void record_failsUntilRetryTime() {
+    final Exception e = new FileNotFoundException();
+    mCache.record(DOCUMENT, e);
+
+    mNow = 3999;
+    assertSame(e, mCache.getFailure(DOCUMENT));
+    mNow = 6001;
+    assertNull(mCache.getFailure(DOCUMENT));
+  }
+
+  @Test
+  public void record_doublesDelayOnRepeatedFailures() {
+    mCache.record(DOCUMENT, new FileNotFoundException());
+    mNow = 6001;
+    mCache.record(DOCUMENT, new FileNotFoundException());
+
+    mNow = 6001 + 7999;
+    assertNotNull(mCache.getFailure(DOCUMENT));
+    mNow = 6001 + 12001;
+    assertNull(mCache.getFailure(DOCUMENT));
+  }
+
+  @Test
+  public void record_capsDelay() {
+    for (int i = 0; i < 30; ++i) {
+      mCache.record(DOCUMENT, new FileNotFoundException());
+    }
+
+    mNow = 47999;
+    assertNotNull(mCache.getFailure(DOCUMENT));
+    mNow = 72001;
+    assertNull(mCache.getFailure(DOCUMENT));
+  }
+
+  @Test
+  public void record_otherFailureOnlyCoversDocument() {
+    mCache.record(DOCUMENT, new IOException());
+
+    assertNotNull(mCache.getFailure(DOCUMENT));
+    assertNull(mCache.getFailure(SIBLING));
+  }
+
+  @Test
+  public void record_authFailureCoversShare() {
+    final Exception e = new AuthFailedException();
+    mCache.record(DOCUMENT, e);
+
+    assertSame(e, mCache.getFailure(SIBLING));
+    assertSame(e, mCache.getFailure(Uri.parse("smb://SERVER/SHARE")));
+    assertNull(mCache.getFailure(OTHER_SHARE));
+  }
+
+  @Test
+  public void clear_forgetsShareFailures() {
+    mCache.record(DOCUMENT, new AuthFailedException());
+
+    mCache.clear(SIBLING);
+
+    assertNull(mCache.getFailure(DOCUMENT));
+  }
+
+  @Test
+  public void remove_keepsShareFailures() {
+    mCache.record(DOCUMENT, new AuthFailedException());
+    mCache.record(DOCUMENT, new IOException());
+
+    mCache.remove(DOCUMENT);
+
+    assertNotNull(mCache.getFailure(DOCUMENT));
+  }
+
+  @Test
+  public void clear_resetsBackoff() {
+    mCache.record(DOCUMENT, new FileNotFoundException());
+    mCache.record(DOCUMENT, new FileNotFoundException());
+    mCache.clear(DOCUMENT);
+
+    mCache.record(DOCUMENT, new FileNotFoundException());
+
+    mNow = 6001;
+    assertNull(mCache.getFailure(DOCUMENT));
+  }
+}
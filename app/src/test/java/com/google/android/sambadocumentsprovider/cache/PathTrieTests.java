@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.cache;
+
+import android.net.Uri;
+
+import com.google.android.sambadocumentsprovider.BuildConfig;
+import com.google.android.sambadocumentsprovider.base.DocumentPath;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PathTrieTests {
+
+  private PathTrie<String> mTrie;
+
+  @Before
+  public void init() {
+    mTrie = new PathTrie<>();
+  }
+
+  @Test
+  public void put_getReturnsValue() {
+    mTrie.put(path("smb://server/share/a"), "a");
+    mTrie.put(path("smb://server/share/a/b"), "b");
+
+    assertEquals("a", mTrie.get(path("smb://server/share/a")));
+    assertEquals("b", mTrie.get(path("smb://server/share/a/b")));
+    assertNull(mTrie.get(path("smb://server/share")));
+    assertEquals(2, mTrie.size());
+  }
+
+  @Test
+  public void put_replacesValueWithoutGrowing() {
+    assertNull(mTrie.put(path("smb://server/share/a"), "old"));
+
+    assertEquals("old", mTrie.put(path("smb://server/share/a"), "new"));
+    assertEquals("new", mTrie.get(path("smb://server/share/a")));
+    assertEquals(1, mTrie.size());
+  }
+
+  @Test
+  public void remove_keepsSiblingsAndDescendants() {
+    mTrie.put(path("smb://server/share/a"), "a");
+    mTrie.put(path("smb://server/share/a/b"), "b");
+    mTrie.put(path("smb://server/share/c"), "c");
+
+    assertEquals("a", mTrie.remove(path("smb://server/share/a")));
+
+    assertNull(mTrie.get(path("smb://server/share/a")));
+    assertEquals("b", mTrie.get(path("smb://server/share/a/b")));
+    assertEquals("c", mTrie.get(path("smb://server/share/c")));
+    assertEquals(2, mTrie.size());
+  }
+
+  @Test
+  public void remove_missingPathReturnsNull() {
+    mTrie.put(path("smb://server/share/a/b"), "b");
+
+    assertNull(mTrie.remove(path("smb://server/share/a")));
+    assertNull(mTrie.remove(path("smb://server/share/x")));
+    assertEquals(1, mTrie.size());
+  }
+
+  @Test
+  public void removeSubtree_removesPathAndDescendantsOnly() {
+    mTrie.put(path("smb://server/share/a"), "a");
+    mTrie.put(path("smb://server/share/a/b"), "b");
+    mTrie.put(path("smb://server/share/a/b/c"), "c");
+    mTrie.put(path("smb://server/share/ab"), "ab");
+
+    final List<String> removed = mTrie.removeSubtree(path("smb://server/share/a"));
+
+    assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), new HashSet<>(removed));
+    assertNull(mTrie.get(path("smb://server/share/a/b/c")));
+    assertEquals("ab", mTrie.get(path("smb://server/share/ab")));
+    assertEquals(1, mTrie.size());
+  }
+
+  @Test
+  public void removeSubtree_underValuelessFolder() {
+    mTrie.put(path("smb://server/share/a/b"), "b");
+    mTrie.put(path("smb://server/share/a/c"), "c");
+
+    assertEquals(2, mTrie.removeSubtree(path("smb://server/share/a")).size());
+    assertEquals(0, mTrie.size());
+  }
+
+  @Test
+  public void removeSubtree_networkRootClearsEverything() {
+    mTrie.put(path("smb://server/share/a"), "a");
+    mTrie.put(path("smb://other/share"), "share");
+
+    assertEquals(2, mTrie.removeSubtree(path("smb://")).size());
+    assertEquals(0, mTrie.size());
+    assertNull(mTrie.get(path("smb://other/share")));
+  }
+
+  @Test
+  public void removeSubtree_missingPathRemovesNothing() {
+    mTrie.put(path("smb://server/share/a"), "a");
+
+    assertTrue(mTrie.removeSubtree(path("smb://server/share/x")).isEmpty());
+    assertEquals(1, mTrie.size());
+  }
+
+  private static DocumentPath path(String uri) {
+    return DocumentPath.fromUri(Uri.parse(uri));
+  }
+}
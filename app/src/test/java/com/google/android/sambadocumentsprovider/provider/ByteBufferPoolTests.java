@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.google.android.sambadocumentsprovider.provider;
+
+import com.google.android.sambadocumentsprovider.BuildConfig;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ByteBufferPoolTests {
+
+  private static final int KB = 1024;
+  private static final int MB = 1024 * KB;
+
+  private ByteBufferPool mPool;
+
+  @Before
+  public void init() {
+    mPool = new ByteBufferPool();
+  }
+
+  @Test
+  public void obtainBuffer_roundsUpToSizeClass() {
+    assertEquals(64 * KB, mPool.obtainBuffer(1).capacity());
+    assertEquals(64 * KB, mPool.obtainBuffer(64 * KB).capacity());
+    assertEquals(256 * KB, mPool.obtainBuffer(64 * KB + 1).capacity());
+    assertEquals(MB, mPool.obtainBuffer(MB).capacity());
+    assertEquals(4 * MB, mPool.obtainBuffer(2 * MB).capacity());
+  }
+
+  @Test
+  public void obtainBuffer_capsAtLargestSizeClass() {
+    assertEquals(4 * MB, mPool.obtainBuffer(16 * MB).capacity());
+  }
+
+  @Test
+  public void obtainBuffer_returnsDirectBuffer() {
+    assertTrue(mPool.obtainBuffer(1).isDirect());
+  }
+
+  @Test
+  public void recycleBuffer_reusesBufferOfSameClass() {
+    final ByteBuffer buffer = mPool.obtainBuffer(100 * KB);
+    buffer.put((byte) 1);
+    mPool.recycleBuffer(buffer);
+
+    final ByteBuffer reused = mPool.obtainBuffer(200 * KB);
+    assertSame(buffer, reused);
+    assertEquals(0, reused.position());
+    assertEquals(reused.capacity(), reused.limit());
+    assertEquals(1, mPool.getHitCount());
+  }
+
+  @Test
+  public void recycleBuffer_doesNotServeOtherClasses() {
+    final ByteBuffer buffer = mPool.obtainBuffer(64 * KB);
+    mPool.recycleBuffer(buffer);
+
+    assertNotSame(buffer, mPool.obtainBuffer(MB));
+    assertEquals(0, mPool.getHitCount());
+  }
+
+  @Test
+  public void obtainBuffer_countsAllocatedBytes() {
+    mPool.obtainBuffer(1);
+    mPool.recycleBuffer(mPool.obtainBuffer(MB));
+
+    // Idle buffers still count against the budget.
+    assertEquals(64 * KB + MB, mPool.getTotalBytes());
+    assertEquals(64 * KB + MB, mPool.getPeakBytes());
+  }
+
+  @Test
+  public void obtainBufferNoWait_allocatesOverBudget() {
+    // The budget is 32 MB.
+    for (int i = 0; i < 8; ++i) {
+      mPool.obtainBuffer(4 * MB);
+    }
+
+    assertEquals(4 * MB, mPool.obtainBufferNoWait(4 * MB).capacity());
+    assertEquals(1, mPool.getOverflowCount());
+    assertEquals(36 * MB, mPool.getTotalBytes());
+  }
+
+  @Test
+  public void obtainBuffer_dropsIdleBuffersToStayInBudget() {
+    final ByteBuffer[] buffers = new ByteBuffer[8];
+    for (int i = 0; i < buffers.length; ++i) {
+      buffers[i] = mPool.obtainBuffer(4 * MB);
+    }
+    mPool.recycleBuffer(buffers[0]);
+    mPool.recycleBuffer(buffers[1]);
+
+    assertEquals(MB, mPool.obtainBufferNoWait(MB).capacity());
+    assertEquals(0, mPool.getOverflowCount());
+    assertEquals(29 * MB, mPool.getTotalBytes());
+  }
+}